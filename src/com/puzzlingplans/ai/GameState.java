@@ -4,6 +4,7 @@ import java.io.PrintStream;
 import java.util.Arrays;
 
 import com.puzzlingplans.ai.util.CloningObject;
+import com.puzzlingplans.ai.util.NotSupportedException;
 
 public abstract class GameState<T extends GameState<T>> extends CloningObject
 {
@@ -19,6 +20,9 @@ public abstract class GameState<T extends GameState<T>> extends CloningObject
 	int[] playerScores;
 	boolean gameOver;
 
+	long[] undoStack;
+	int undoTop;
+
 	//
 
 	public abstract MoveResult playTurn(Decider decider) throws MoveFailedException;
@@ -224,6 +228,8 @@ public abstract class GameState<T extends GameState<T>> extends CloningObject
 	{
 		T copy = (T) super.clone();
 		copy.playerScores = Arrays.copyOf(playerScores, playerScores.length);
+		copy.undoStack = null;
+		copy.undoTop = 0;
 		return copy;
 	}
 	
@@ -241,6 +247,53 @@ public abstract class GameState<T extends GameState<T>> extends CloningObject
 		}
 	}
 
+	//
+
+	/**
+	 * Optional undo protocol, so a search can play moves on one state and take
+	 * them back instead of copy()ing it at every node. pushUndo() saves the
+	 * position and popUndo() restores the last one saved; calls nest.
+	 * Subclasses that support it override all three, saving their own fields
+	 * after super.pushUndo() and restoring them before super.popUndo().
+	 */
+	public boolean supportsUndo()
+	{
+		return false;
+	}
+
+	public void pushUndo()
+	{
+		if (!supportsUndo())
+			throw new NotSupportedException();
+		for (int i=0; i<numPlayers; i++)
+			saveUndo(playerScores[i]);
+		saveUndo(currentPlayer);
+		saveUndo(gameOver ? 1 : 0);
+	}
+
+	public void popUndo()
+	{
+		gameOver = restoreUndo() != 0;
+		currentPlayer = (int) restoreUndo();
+		for (int i=numPlayers-1; i>=0; i--)
+			playerScores[i] = (int) restoreUndo();
+	}
+
+	protected final void saveUndo(long value)
+	{
+		if (undoStack == null)
+			undoStack = new long[64];
+		else if (undoTop == undoStack.length)
+			undoStack = Arrays.copyOf(undoStack, undoTop * 2);
+		undoStack[undoTop++] = value;
+	}
+
+	protected final long restoreUndo()
+	{
+		assert(undoTop > 0);
+		return undoStack[--undoTop];
+	}
+
 	public long defaultHash()
 	{
 		final int prime = 31;
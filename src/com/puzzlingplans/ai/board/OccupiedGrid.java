@@ -1,5 +1,7 @@
 package com.puzzlingplans.ai.board;
 
+import java.util.Arrays;
+
 import com.puzzlingplans.ai.util.FastBitSet;
 import com.puzzlingplans.ai.util.Revertable;
 
@@ -11,6 +13,13 @@ public class OccupiedGrid<T> extends Grid<T>
 	protected FastBitSet<?>[] occupied;
 	protected long allSquaresMask;
 	
+	// journal of overwritten cells, kept while any startJournal() is not yet reverted
+	private int journalDepth;
+	private int journalSize;
+	private int[] journalCells;
+	private Object[] journalValues;
+	private byte[] journalColors;
+	
 	//
 	
 	public OccupiedGrid(int width, int height, T defaultValue, int numColors)
@@ -31,6 +40,11 @@ public class OccupiedGrid<T> extends Grid<T>
 		copy.occupied = new FastBitSet[numColors];
 		for (int i=0; i<numColors; i++)
 			copy.occupied[i] = (FastBitSet) occupied[i].clone();
+		copy.journalDepth = 0;
+		copy.journalSize = 0;
+		copy.journalCells = null;
+		copy.journalValues = null;
+		copy.journalColors = null;
 		return copy;
 	}
 
@@ -52,6 +66,8 @@ public class OccupiedGrid<T> extends Grid<T>
 
 	public void set(int i, T val, int color)
 	{
+		if (journalDepth > 0)
+			record(i);
 		super.set(i, val);
 		
 		for (int j=0; j<numColors; j++)
@@ -86,6 +102,55 @@ public class OccupiedGrid<T> extends Grid<T>
 		return rev;
 	}
 
+	/**
+	 * Starts recording every cell that set() overwrites and returns the current
+	 * position in the journal, to be passed to the matching revertJournal().
+	 * Calls nest.
+	 */
+	public int startJournal()
+	{
+		if (journalCells == null)
+		{
+			journalCells = new int[64];
+			journalValues = new Object[64];
+			journalColors = new byte[64];
+		}
+		journalDepth++;
+		return journalSize;
+	}
+
+	/**
+	 * Puts back every cell changed since startJournal() returned mark.
+	 */
+	public void revertJournal(int mark)
+	{
+		assert(journalDepth > 0 && mark <= journalSize);
+		int depth = journalDepth;
+		journalDepth = 0;
+		for (int j=journalSize-1; j>=mark; j--)
+		{
+			set(journalCells[j], (T) journalValues[j], journalColors[j]);
+			journalValues[j] = null;
+		}
+		journalSize = mark;
+		journalDepth = depth - 1;
+	}
+
+	private void record(int i)
+	{
+		if (journalSize == journalCells.length)
+		{
+			int n = journalSize * 2;
+			journalCells = Arrays.copyOf(journalCells, n);
+			journalValues = Arrays.copyOf(journalValues, n);
+			journalColors = Arrays.copyOf(journalColors, n);
+		}
+		journalCells[journalSize] = i;
+		journalValues[journalSize] = get(i);
+		journalColors[journalSize] = (byte) getColor(i);
+		journalSize++;
+	}
+
 	public int getColor(int x, int y)
 	{
 		return getColor(xy2i(x, y));
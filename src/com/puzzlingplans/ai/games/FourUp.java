@@ -35,6 +35,24 @@ public class FourUp extends MNKGame<FourUp>
 		return copy;
 	}
 
+	@Override
+	public void pushUndo()
+	{
+		super.pushUndo();
+		saveUndo(colmask);
+		for (int x=0; x<depths.length; x++)
+			saveUndo(depths[x]);
+	}
+
+	@Override
+	public void popUndo()
+	{
+		for (int x=depths.length-1; x>=0; x--)
+			depths[x] = (int) restoreUndo();
+		colmask = restoreUndo();
+		super.popUndo();
+	}
+
 	@Override
 	public MoveResult playTurn(final Decider decider) throws MoveFailedException
 	{
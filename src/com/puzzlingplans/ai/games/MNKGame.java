@@ -41,6 +41,26 @@ public class MNKGame<T extends MNKGame<T>> extends GameState<T> implements Hashe
 		return copy;
 	}
 
+	@Override
+	public boolean supportsUndo()
+	{
+		return true;
+	}
+
+	@Override
+	public void pushUndo()
+	{
+		super.pushUndo();
+		saveUndo(board.startJournal());
+	}
+
+	@Override
+	public void popUndo()
+	{
+		board.revertJournal((int) restoreUndo());
+		super.popUndo();
+	}
+
 	public OccupiedGrid<Piece> getBoard()
 	{
 		return board;
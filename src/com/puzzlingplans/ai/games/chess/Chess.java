@@ -76,6 +76,19 @@ public class Chess extends GameState<Chess> implements HashedPosition
 		{
 			return enpassant + (castling<<6) + (incheck?128:0);
 		}
+
+		long pack()
+		{
+			return (kingpos & 0xff) | ((enpassant & 0xff) << 8) | ((castling & 0xff) << 16) | (incheck ? 1<<24 : 0);
+		}
+
+		void unpack(long v)
+		{
+			kingpos = (byte) v;
+			enpassant = (byte) (v >> 8);
+			castling = (byte) (v >> 16);
+			incheck = (v & (1<<24)) != 0;
+		}
 	}
 
 	private static Piece EMPTY = new Piece(-1, PieceType._);
@@ -169,6 +182,32 @@ public class Chess extends GameState<Chess> implements HashedPosition
 		return copy;
 	}
 
+	@Override
+	public boolean supportsUndo()
+	{
+		return true;
+	}
+
+	@Override
+	public void pushUndo()
+	{
+		super.pushUndo();
+		saveUndo(board.startJournal());
+		for (int i = 0; i < pstate.length; i++)
+			saveUndo(pstate[i].pack());
+		saveUndo(numTurns);
+	}
+
+	@Override
+	public void popUndo()
+	{
+		numTurns = (int) restoreUndo();
+		for (int i = pstate.length - 1; i >= 0; i--)
+			pstate[i].unpack(restoreUndo());
+		board.revertJournal((int) restoreUndo());
+		super.popUndo();
+	}
+
 	public OccupiedGrid<Piece> getBoard()
 	{
 		return board;
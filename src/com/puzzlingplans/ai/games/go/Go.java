@@ -58,6 +58,28 @@ public class Go extends GameState<Go> implements HashedPosition
 		return copy;
 	}
 
+	@Override
+	public boolean supportsUndo()
+	{
+		return true;
+	}
+
+	@Override
+	public void pushUndo()
+	{
+		super.pushUndo();
+		saveUndo(board.startJournal());
+		saveUndo(consecutive_passes);
+	}
+
+	@Override
+	public void popUndo()
+	{
+		consecutive_passes = (int) restoreUndo();
+		board.revertJournal((int) restoreUndo());
+		super.popUndo();
+	}
+
 	public OccupiedGrid<Piece> getBoard()
 	{
 		return board;
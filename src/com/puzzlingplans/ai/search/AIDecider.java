@@ -32,8 +32,13 @@ public abstract class AIDecider implements Decider
 
 	private Random rnd;
 
+	private long timeLimit;		// nanoseconds per solve(), 0 = no limit
+	private long deadline;
+
 	public int totalSolveCount;
 	public long totalSolveTime;
+	public long totalSolveIterations;
+	protected int lastSolveIterations;	// simulations or leaves, set by solve()
 
 	protected Log log = new LogAdapter(getClass());
 
@@ -65,6 +70,24 @@ public abstract class AIDecider implements Decider
 		this.rnd = new RandomXorshift128(i);
 	}
 
+	// wall-clock budget for each solve(), 0 to only use the solver's iteration/leaf limits
+	public void setTimeLimit(long millis)
+	{
+		assert(millis >= 0);
+		this.timeLimit = millis * 1000000L;
+	}
+
+	// System.nanoTime() by which solve() should return, or 0 if there is no time limit
+	protected final long getDeadline()
+	{
+		return deadline;
+	}
+
+	public int getLastSolveIterations()
+	{
+		return lastSolveIterations;
+	}
+
 	@Override
 	public MoveResult choose(Choice choice) throws MoveFailedException
 	{
@@ -136,6 +159,8 @@ public abstract class AIDecider implements Decider
 	private boolean makeChoices() throws MoveFailedException
 	{
 		long t1 = System.currentTimeMillis();
+		this.deadline = timeLimit > 0 ? System.nanoTime() + timeLimit : 0;
+		this.lastSolveIterations = 0;
 		Line<?> bestPath;
 		try
 		{
@@ -149,9 +174,10 @@ public abstract class AIDecider implements Decider
 		}
 		long t2 = System.currentTimeMillis();
 		if (canDebug())
-			log.debug("Solved " + bestPath + " in " + (t2-t1) + " msec");
+			log.debug("Solved " + bestPath + " in " + (t2-t1) + " msec, " + lastSolveIterations + " iterations");
 		totalSolveTime += t2-t1;
 		totalSolveCount++;
+		totalSolveIterations += lastSolveIterations;
 
 		if (bestPath == null)
 			throw new MoveFailedException("No next move");
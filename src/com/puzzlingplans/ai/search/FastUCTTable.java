@@ -1,34 +1,39 @@
 package com.puzzlingplans.ai.search;
 
+// UCT exploration term sqrt(log(p) / n), split into sqrt(log(p)) * 1/sqrt(n)
+// so each half is a 1-D table and a node's sqrt(log(p)) is looked up once per selection
 public class FastUCTTable
 {
-	private int s;
 	private int max;
-	private double[] tab;
+	private float[] sqrtLog;
+	private float[] invSqrt;
 
 	public FastUCTTable(int s)
 	{
-		this.s = s;
 		this.max = 1<<s;
-		this.tab = new double[1<<(s*2)];
-		int i = 0;
-		for (int p=0; p<max; p++)
-			for (int n=0; n<max; n++)
-				tab[i++] = calcUCT(p, n);
+		this.sqrtLog = new float[max];
+		this.invSqrt = new float[max];
+		for (int i=1; i<max; i++)
+		{
+			sqrtLog[i] = (float) Math.sqrt(Math.log(i));
+			invSqrt[i] = (float) (1 / Math.sqrt(i));
+		}
 	}
-	
+
 	public double getUCT(int p, int n)
 	{
 		assert(p > 0);
 		assert(n > 0);
-		if (p < max && n < max)
-			return tab[n + (p<<s)];
-		else
-			return calcUCT(p, n);
+		return getSqrtLog(p) * getInvSqrt(n);
+	}
+
+	public float getSqrtLog(int p)
+	{
+		return p < max ? sqrtLog[p] : (float) Math.sqrt(Math.log(p));
 	}
 
-	private static double calcUCT(int p, int n)
+	public float getInvSqrt(int n)
 	{
-		return Math.sqrt(Math.log(p) / n);
+		return n < max ? invSqrt[n] : (float) (1 / Math.sqrt(n));
 	}
 }
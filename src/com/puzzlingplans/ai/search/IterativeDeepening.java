@@ -0,0 +1,160 @@
+package com.puzzlingplans.ai.search;
+
+import com.puzzlingplans.ai.GameState;
+import com.puzzlingplans.ai.Line;
+
+// http://chessprogramming.wikispaces.com/Iterative+Deepening
+// http://chessprogramming.wikispaces.com/Aspiration+Windows
+
+/**
+ * Runs a Minimax at increasing depths. The same instance is reused, so the
+ * transposition table and cutoff hints carry over from one depth to the next,
+ * and each search tries the previous principal variation first. It counts
+ * as one search for the packed transposition table, so deeper entries from
+ * earlier depths are kept over shallower ones (see Minimax.newSearch()).
+ * With an aspiration window, each search starts with a narrow alpha/beta around
+ * the last score and is repeated with that side opened up if it falls outside.
+ * Stops after maxLevel, or at the Minimax deadline or leaf budget, keeping the
+ * result of the deepest search that finished.
+ */
+public class IterativeDeepening
+{
+	Minimax mmax;
+	int depth;
+	int depthInc;
+	int maxdepth;
+	int window;
+	int maxNumLeaves;
+	int score;
+	int lastDepth;
+	Line<Minimax.Node> pv;
+	boolean outOfTime;
+	int numResearches;
+
+	//
+
+	public IterativeDeepening(Minimax mmax, int initialLevel, int incLevel, int maxLevel)
+	{
+		assert(incLevel > 0);
+		this.mmax = mmax;
+		this.depth = initialLevel;
+		this.depthInc = incLevel;
+		this.maxdepth = maxLevel;
+		mmax.newSearch();
+	}
+
+	// half-width of the aspiration window, 0 to always search with a full window
+	public void setAspirationWindow(int window)
+	{
+		this.window = window;
+	}
+
+	// abandon the search in progress once System.nanoTime() passes this
+	public void setDeadline(long nanoTime)
+	{
+		mmax.setDeadline(nanoTime);
+	}
+
+	// abandon the search in progress once the Minimax has visited this many leaves in all
+	public void setMaxNumLeaves(int max)
+	{
+		this.maxNumLeaves = max;
+		mmax.setMaxNumLeaves(max);
+	}
+
+	public boolean isDone()
+	{
+		if (outOfTime)
+			return true;
+		if (depth > maxdepth)
+			return true;
+		if (maxNumLeaves > 0 && mmax.numLeavesVisited() >= maxNumLeaves)
+			return true;
+
+		return false;
+	}
+
+	public boolean iterate()
+	{
+		if (isDone())
+			return false;
+
+		mmax.setMaxLevel(depth);
+		mmax.setPrincipalVariationHint(pv);
+		int alpha = GameState.SCORE_MIN;
+		int beta = GameState.SCORE_MAX;
+		if (window > 0 && pv != null)
+		{
+			alpha = (int) Math.max(GameState.SCORE_MIN, (long) score - window);
+			beta = (int) Math.min(GameState.SCORE_MAX, (long) score + window);
+		}
+		int result;
+		while (true)
+		{
+			result = mmax.solveWithAlphaBeta(alpha, beta);
+			if (mmax.isOutOfTime())
+			{
+				outOfTime = true;
+				return false;
+			}
+			// outside the window, search again with that side open
+			if (result <= alpha && alpha != GameState.SCORE_MIN)
+				alpha = GameState.SCORE_MIN;
+			else if (result >= beta && beta != GameState.SCORE_MAX)
+				beta = GameState.SCORE_MAX;
+			else
+				break;
+			numResearches++;
+		}
+
+		score = result;
+		pv = mmax.getPrincipalVariation();
+		lastDepth = depth;
+		depth += depthInc;
+		return true;
+	}
+
+	public int solve()
+	{
+		while (iterate())
+			;
+		return score;
+	}
+
+	public int getScore()
+	{
+		return score;
+	}
+
+	// principal variation of the deepest search that finished, or null
+	public Line<Minimax.Node> getPrincipalVariation()
+	{
+		return pv;
+	}
+
+	public Line<?> getBestMove()
+	{
+		return pv != null ? pv.getFirst() : null;
+	}
+
+	public int getLastDepth()
+	{
+		return lastDepth;
+	}
+
+	public boolean isOutOfTime()
+	{
+		return outOfTime;
+	}
+
+	public int numResearches()
+	{
+		return numResearches;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "score=" + score + " depth=" + lastDepth + " researches=" + numResearches + (outOfTime ? " (out of time)" : "");
+	}
+}
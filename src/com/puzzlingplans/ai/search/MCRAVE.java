@@ -1,9 +1,12 @@
 package com.puzzlingplans.ai.search;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.puzzlingplans.ai.Choice;
 import com.puzzlingplans.ai.GameOverException;
@@ -15,7 +18,7 @@ import com.puzzlingplans.ai.MoveResult;
 import com.puzzlingplans.ai.RandomChoice;
 import com.puzzlingplans.ai.UniformRandomChoice;
 import com.puzzlingplans.ai.util.BitUtils;
-import com.puzzlingplans.ai.util.FastHash;
+import com.puzzlingplans.ai.util.ConcurrentFastHash;
 import com.puzzlingplans.ai.util.HammingSpaceIndex;
 import com.puzzlingplans.ai.util.MiscUtils;
 import com.puzzlingplans.ai.util.RandomXorshift128;
@@ -32,6 +35,7 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			this.mask = mask;
 			this.numVisits = 1;
 			this.level = (short) level;
+			this.stats = new AtomicLongArray((BitUtils.highSetBit(mask) + 1) * 2);
 		}
 
 		final long key;
@@ -42,8 +46,31 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 		long invalidMoves;
 		long solvedMoves;
 		// long visitedSubtreeMoves;
-		ActionNode[] actNodes;
-		int numVisits;
+		volatile int numVisits;
+		volatile int generation;	// search generation the counts belong to, see MCRAVE.resetVisitCounts()
+
+		// action statistics, packed as (count << 32 | float bits of mean) so that
+		// concurrent backprops update a count and its mean with one CAS:
+		// stats[a*2] = (n, q) for playouts that made the move here,
+		// stats[a*2+1] = (n2, q2) for playouts that made it later (for RAVE)
+		volatile AtomicLongArray stats;
+
+		private static final AtomicIntegerFieldUpdater<TreeNode> numVisitsUpdater = AtomicIntegerFieldUpdater.newUpdater(TreeNode.class, "numVisits");
+
+		static int count(long packed)
+		{
+			return (int) (packed >>> 32);
+		}
+
+		static float mean(long packed)
+		{
+			return Float.intBitsToFloat((int) packed);
+		}
+
+		static long pack(int count, float mean)
+		{
+			return ((long) count << 32) | (Float.floatToRawIntBits(mean) & 0xffffffffL);
+		}
 
 		@Override
 		public String toString()
@@ -53,41 +80,123 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 					+ numVisits + "]";
 		}
 
-		public ActionNode getActionNode(int action)
+		public int getNumActions()
 		{
-			ActionNode[] acts = actNodes;
-			if (acts == null || action >= acts.length)
-				return null;
+			return stats.length() >> 1;
+		}
+
+		public boolean hasAction(int action)
+		{
+			AtomicLongArray st = stats;
+			int i = action * 2;
+			return i < st.length() && (st.get(i) != 0 || st.get(i+1) != 0);
+		}
 
-			// TODO: ArrayIndexOutOfBoundsException during level generation
-			return acts[action];
+		public int getActionVisits(int action)
+		{
+			AtomicLongArray st = stats;
+			int i = action * 2;
+			return i < st.length() ? count(st.get(i)) : 0;
 		}
 
-		public int getMaxActionNodes()
+		public float getWinRate(int action)
 		{
-			ActionNode[] acts = actNodes;
-			return (acts != null) ? acts.length : 0;
+			AtomicLongArray st = stats;
+			int i = action * 2;
+			return i < st.length() ? mean(st.get(i)) : 0;
 		}
 
-		public ActionNode createOrGetActionNode(int action)
+		public float getValue(int action, float bbsqr4)
 		{
-			ActionNode[] acts = actNodes;
-			if (acts == null)
+			AtomicLongArray st = stats;
+			long root = st.get(action * 2);
+			long subtree = st.get(action * 2 + 1);
+			int n = count(root);
+			int n2 = count(subtree);
+			float beta = n2 / (n + n2 + bbsqr4 * n * n2);
+			assert (!Double.isNaN(beta));
+			return (float) ((1 - beta) * mean(root) + beta * mean(subtree));
+		}
+
+		public void addVisit()
+		{
+			numVisitsUpdater.incrementAndGet(this);
+		}
+
+		public void addRootOutcome(int action, float value)
+		{
+			addOutcome(action * 2, pack(1, value));
+		}
+
+		public void addSubtreeOutcome(int action, float value)
+		{
+			addOutcome(action * 2 + 1, pack(1, value));
+		}
+
+		// adds the outcomes in packed to stats[i]; if the array was replaced
+		// meanwhile, takes back what the copy missed and adds it to the new one
+		private void addOutcome(int i, long packed)
+		{
+			AtomicLongArray st = stats;
+			while (true)
 			{
-				acts = actNodes = new ActionNode[BitUtils.highSetBit(mask) + 1];
+				if (i >= st.length())
+					st = growStats(i + 2);
+				combine(st, i, packed);
+				AtomicLongArray current = stats;
+				if (current == st)
+					return;
+				packed = st.getAndSet(i, 0);
+				if (packed == 0)
+					return;
+				st = current;
 			}
+		}
+
+		private static void combine(AtomicLongArray st, int i, long packed)
+		{
+			int n2 = count(packed);
+			float q2 = mean(packed);
+			long old, update;
+			do {
+				old = st.get(i);
+				int n = count(old) + n2;
+				float q = mean(old);
+				update = pack(n, q + (q2 - q) * n2 / n);
+			} while (!st.compareAndSet(i, old, update));
+		}
 
-			// TODO: why are we getting these out-of-bounds errors?
-			if (action >= acts.length)
+		// the stats are sized from the mask, this is only for moves outside it.
+		// The new array is published first, then the old one is drained into it
+		// slot by slot, so concurrent updates aren't lost (see addOutcome()),
+		// though reads during the move may briefly miss some counts.
+		private synchronized AtomicLongArray growStats(int length)
+		{
+			AtomicLongArray st = stats;
+			if (length > st.length())
 			{
-				acts = Arrays.copyOf(acts, action+1);
+				// TODO: why are we getting these out-of-bounds errors?
+				AtomicLongArray bigger = new AtomicLongArray(length);
+				stats = bigger;
+				for (int i = 0; i < st.length(); i++)
+				{
+					long packed = st.getAndSet(i, 0);
+					if (packed != 0)
+						combine(bigger, i, packed);
+				}
+				st = bigger;
 				_numArrayResizes++;
 			}
-			ActionNode actnode = acts[action];
-			if (actnode == null)
-				return (acts[action] = new ActionNode());
-			else
-				return actnode;
+			return st;
+		}
+
+		public String actionToString(int action)
+		{
+			if (!hasAction(action))
+				return "null";
+			long root = stats.get(action * 2);
+			long subtree = stats.get(action * 2 + 1);
+			return "[" + mean(root) + "/" + count(root) + " " + mean(subtree) + "/" + count(subtree) + " = " + getValue(action, 0.1f) + "]";
 		}
 
 		/*
@@ -105,6 +214,11 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			return numVisits;
 		}
 
+		public long getKey()
+		{
+			return key;
+		}
+
 		public int getLevel()
 		{
 			return level;
@@ -132,43 +246,38 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			// when multithreaded
 			invalidMoves |= m;
 		}
-	}
-
-	public final static class ActionNode
-	{
-		private float q, q2;
-		private int n, n2;
-
-		public float getValue(float bbsqr4)
-		{
-			float beta = n2 / (n + n2 + bbsqr4 * n * n2);
-			assert (!Double.isNaN(beta));
-			// if (n == 3000) System.out.println(n + " " + n2 + " " + beta + " "
-			// + q + " " + q2 + " " + (q2 - q));
-			return (float) ((1 - beta) * q + beta * q2);
-		}
-
-		public float getWinRate()
-		{
-			return q;
-		}
-
-		public void addRootOutcome(float value)
-		{
-			n++;
-			q += (value - q) / n;
-		}
 
-		public void addSubtreeOutcome(float value)
+		// brings the counts up to date, the first time a node is seen in a new generation
+		void age(int gen)
 		{
-			n2++;
-			q2 += (value - q2) / n2;
+			if (generation != gen)
+			{
+				synchronized (this)
+				{
+					if (generation != gen)
+					{
+						resetVisitCounts();
+						generation = gen;
+					}
+				}
+			}
 		}
 
-		@Override
-		public String toString()
+		// keeps the moves' average values, but counts each move once
+		void resetVisitCounts()
 		{
-			return "[" + q + "/" + n + " " + q2 + "/" + n2 + " = " + getValue(0.1f) + "]";
+			numVisits = 1;
+			AtomicLongArray st = stats;
+			for (int i = 0; i < st.length(); i += 2)
+			{
+				long root = st.get(i);
+				long subtree = st.get(i+1);
+				if (root != 0 || subtree != 0)
+				{
+					st.set(i, pack(1, mean(root)));
+					st.set(i+1, pack(1, mean(subtree)));
+				}
+			}
 		}
 	}
 
@@ -256,12 +365,22 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 		private Random rnd;
 		private int nodesOutOfTree; // # of null nodes since we left the tree
 
+		// scratch arrays for selectAction(), one entry per candidate move
+		private final int[] selActions = new int[64];
+		private final float[] selN = new float[64];
+		private final float[] selN2 = new float[64];
+		private final float[] selInvSqrtN = new float[64];
+		private final float[] selQ = new float[64];
+		private final float[] selQ2 = new float[64];
+		private final float[] selScores = new float[64];
+
 		private int[] initialChoices;
 		private int initialChoiceCount;
 
 		public Stats stats = new Stats();
 		public String prefixPathToDebug;
 		public boolean exploration = true;
+		public long deadline; // System.nanoTime() to stop iterating at, 0 = none
 
 		//
 
@@ -307,10 +426,10 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			{
 				long nodekey2 = currentTrail ^ choicekey ^ mask;
 				node = nodes.getEntryAt(nodekey, nodekey2);
-				// TODO: handle race condition with FastHash
-				if (node != null && node.mask != mask)
-					node = nodes.getEntryAt(nodekey, nodekey2);
-				// TODO: this asserts sometimes
+				if (node == null && offHeapNodes != null)
+					node = loadOffHeapNode(nodekey, nodekey2);
+				if (node != null)
+					node.age(generation);
 				assert (node == null || node.mask == mask);
 				// if state was repeated, then cancel this simulation
 				if (findRepetitions && nodesOutOfTree > 0 && node != null && findRepetition(nodekey))
@@ -384,21 +503,15 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 				if (node != null && (rndchoice == null || optimisticChanceNodes))
 				{
 					// find the most promising moves
-					// TODO: performance
-					float max = Float.NEGATIVE_INFINITY;
 					int factor = (currentPlayer == seekingPlayer) ? 1 : -1;
-					for (int a = BitUtils.nextBit(mask, 0); a >= 0; a = BitUtils.nextBit(mask, a + 1))
+					if (debug)
 					{
-						float val = getTotalNodeValue(node, a, factor, debug);
-						if (val > max)
-						{
-							max = val;
-							besta = a;
-							if (debug)
-								prdebug("choose(): best action #" + a + " value = " + val);
-						}
-						// TODO: what if there are ties?
+						for (int a = BitUtils.nextBit(mask, 0); a >= 0; a = BitUtils.nextBit(mask, a + 1))
+							getTotalNodeValue(node, a, factor, debug);
 					}
+					besta = selectAction(node, mask, factor);
+					if (debug)
+						prdebug("choose(): best action #" + besta);
 				}
 				// no best move? pick one using default policy
 				// first try preferred moves from Choice (TODO: performance?)
@@ -543,18 +656,15 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 					}
 				}
 
-				subtree.numVisits++;
+				subtree.addVisit();
 				int choiceKey = lrec.choiceKey;
 				int rootAction = lrec.action;
 				long mask = lrec.mask;
 
-				ActionNode rootActionNode = subtree.createOrGetActionNode(rootAction);
-				assert (rootActionNode != null);
-				rootActionNode.addRootOutcome(value);
-				// rootActionNode.addSubtreeOutcome(value);
+				subtree.addRootOutcome(rootAction, value);
 				stats.numUpdatedActionNodes++;
 				if (debug)
-					prdebug("Updated level " + i + " action " + rootAction + " value " + value + " = " + rootActionNode);
+					prdebug("Updated level " + i + " action " + rootAction + " value " + value + " = " + subtree.actionToString(rootAction));
 
 				// If an action au is legal in state su, but illegal in state
 				// st, then no update is performed for this move.
@@ -576,16 +686,12 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 							// move at the intersection.
 							if ((validActions & (1L << subAction)) != 0)
 							{
-								ActionNode subActionNode = subtree.createOrGetActionNode(subAction);
-								if (subActionNode != null)
-								{
-									subActionNode.addSubtreeOutcome(value);
-									validActions &= ~(1L << subAction);
-									stats.numUpdatedSubtreeNodes++;
-									if (debug)
-										prdebug("Updated level " + i + "/" + j + " action " + subAction + " subtree "
-												+ value + " = " + subActionNode);
-								}
+								subtree.addSubtreeOutcome(subAction, value);
+								validActions &= ~(1L << subAction);
+								stats.numUpdatedSubtreeNodes++;
+								if (debug)
+									prdebug("Updated level " + i + "/" + j + " action " + subAction + " subtree "
+											+ value + " = " + subtree.actionToString(subAction));
 							}
 						}
 					}
@@ -608,6 +714,21 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			}
 		}
 
+		// brings a node back from the off-heap table, if it was culled there
+		private TreeNode loadOffHeapNode(long nodekey, long nodekey2)
+		{
+			TreeNode node = offHeapNodes.get(nodekey, nodekey2);
+			if (node == null)
+				return null;
+			int numVisits = node.numVisits;
+			// only free the off-heap copy once it's the one in the node table,
+			// not if another thread just created a fresh node for this key
+			TreeNode cur = nodes.insertIfAbsent(nodekey, nodekey2, node);
+			if (cur == node)
+				offHeapNodes.remove(nodekey, nodekey2, numVisits);
+			return cur;
+		}
+
 		private TreeNode createNewNode(int level, long trail)
 		{
 			MCLevelInfo lrec = linfo[level];
@@ -615,7 +736,10 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			long nodekey = lrec.nodeKey;
 			long nodekey2 = nodekey ^ lrec.choiceKey ^ mask;
 			assert (useMultipleThreads || !nodes.containsEntry(nodekey, nodekey2));
-			TreeNode newnode = nodes.insertEntry(nodekey, nodekey2, new TreeNode(nodekey, mask, level));
+			// if another thread just created it, use theirs
+			TreeNode node = new TreeNode(nodekey, mask, level);
+			node.generation = generation;
+			TreeNode newnode = nodes.insertIfAbsent(nodekey, nodekey2, node);
 			if (newnode == null)
 			{
 				if (debug)
@@ -623,6 +747,7 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 							+ Long.toHexString(nodekey));
 				return null;
 			}
+			newnode.age(generation);
 			stats.numNodesCreated++;
 			stats.numNodeLevelsCreated += level;
 			stats.maxNodeLevel = Math.max(stats.maxNodeLevel, level);
@@ -670,6 +795,8 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			for (int i = 0; i < numIters; i++)
 			{
 				newstate = iterate();
+				if ((i & DEADLINE_CHECK_MASK) == DEADLINE_CHECK_MASK && isPastDeadline(deadline))
+					break;
 			}
 			return newstate;
 		}
@@ -719,31 +846,95 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			System.out.println("[" + iterCount + " L" + currentLevel + " " + getLastMove() + "] " + string);
 		}
 
-		public float getTotalNodeValue(TreeNode tnode, int action, int factor, boolean debug)
+		/**
+		 * Picks the move in mask with the best UCT/RAVE value, breaking ties at random.
+		 * Copies the candidates' stats to flat arrays, then scores them all in a
+		 * loop with no calls or branches, which the JIT can unroll or vectorize.
+		 */
+		private int selectAction(TreeNode tnode, long mask, int factor)
 		{
-			ActionNode anode = tnode.getActionNode(action);
+			AtomicLongArray st = tnode.stats;
+			int numStats = st.length();
+			int k = 0;
+			for (long m = mask; m != 0; m &= m - 1)
+			{
+				int a = Long.numberOfTrailingZeros(m);
+				int i = a * 2;
+				long root = i < numStats ? st.get(i) : 0;
+				long subtree = (useRAVE && i < numStats) ? st.get(i + 1) : 0;
+				int n = TreeNode.count(root);
+				selActions[k] = a;
+				selN[k] = n;
+				selInvSqrtN[k] = uctTable.getInvSqrt(n);
+				selQ[k] = TreeNode.mean(root);
+				selN2[k] = TreeNode.count(subtree);
+				selQ2[k] = TreeNode.mean(subtree);
+				k++;
+			}
+			float[] scores = selScores;
+			if (exploration)
+			{
+				// unvisited moves score uctConstant as in getTotalNodeValue(), nudged by their RAVE value
+				float c = uctConstant;
+				float c2 = c * uctTable.getSqrtLog(tnode.numVisits);
+				float b = raveBias_bbsqr4;
+				for (int j = 0; j < k; j++)
+				{
+					float n = selN[j];
+					float n2 = selN2[j];
+					float beta = n2 / (n + n2 + b * n * n2);
+					float value = ((1 - beta) * selQ[j] + beta * selQ2[j]) * factor + c2 * selInvSqrtN[j];
+					scores[j] = n == 0 ? c + FIRST_PLAY_RAVE_WEIGHT * selQ2[j] * factor : value;
+				}
+			} else
+			{
+				for (int j = 0; j < k; j++)
+					scores[j] = selQ[j] * factor;
+			}
+			// argmax, choosing uniformly among ties
+			int best = 0;
+			int ties = 1;
+			float max = scores[0];
+			for (int j = 1; j < k; j++)
+			{
+				float v = scores[j];
+				if (v > max)
+				{
+					max = v;
+					best = j;
+					ties = 1;
+				} else if (v == max && rnd.nextInt(++ties) == 0)
+				{
+					best = j;
+				}
+			}
+			return selActions[best];
+		}
 
+		public float getTotalNodeValue(TreeNode tnode, int action, int factor, boolean debug)
+		{
 			if (!exploration)
 			{
 				if (debug)
-					prdebug("  #" + action + " " + anode);
-				return anode != null ? anode.getWinRate() * factor : 0;
+					prdebug("  #" + action + " " + tnode.actionToString(action));
+				return tnode.getWinRate(action) * factor;
 			}
-			if (anode == null || anode.n == 0)
+			int n = tnode.getActionVisits(action);
+			if (n == 0)
 			{
 				return uctConstant; // TODO: should have random order?
 			} else if (useRAVE)
 			{
-				float rave = anode.getValue(raveBias_bbsqr4) * factor;
-				double uct = uctConstant * uctTable.getUCT(tnode.numVisits, anode.n);
+				float rave = tnode.getValue(action, raveBias_bbsqr4) * factor;
+				double uct = uctConstant * uctTable.getUCT(tnode.numVisits, n);
 				assert (!Double.isNaN(uct));
 				if (debug)
-					prdebug("  #" + action + " " + anode + " + " + (float) uct + " = " + (float) (rave + uct));
+					prdebug("  #" + action + " " + tnode.actionToString(action) + " + " + (float) uct + " = " + (float) (rave + uct));
 				return (float) (rave + uct);
 			} else
 			{
-				float rave = anode.getWinRate() * factor;
-				double uct = uctConstant * uctTable.getUCT(tnode.numVisits, anode.n);
+				float rave = tnode.getWinRate(action) * factor;
+				double uct = uctConstant * uctTable.getUCT(tnode.numVisits, n);
 				assert (!Double.isNaN(uct));
 				return (float) (rave + uct);
 			}
@@ -753,11 +944,13 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 		{
 			if (turnChoices != null)
 			{
-				this.initialChoices = Arrays.copyOf(turnChoices, turnIndex);
+				// pooled simulators keep their array
+				if (initialChoices == null || initialChoices.length < turnIndex)
+					this.initialChoices = new int[turnIndex];
+				System.arraycopy(turnChoices, 0, initialChoices, 0, turnIndex);
 				this.initialChoiceCount = turnIndex;
 			} else
 			{
-				this.initialChoices = null;
 				this.initialChoiceCount = 0;
 			}
 		}
@@ -775,7 +968,12 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 
 	//
 
-	private FastHash<TreeNode> nodes;
+	// unvisited moves all score uctConstant, this much of their RAVE value orders them
+	private static final float FIRST_PLAY_RAVE_WEIGHT = 0.001f;
+
+	private ConcurrentFastHash<TreeNode> nodes;
+	private OffHeapNodeTable offHeapNodes;
+	private volatile int generation;
 	private float uctConstant;
 	private boolean useRAVE;
 	private float raveBias;
@@ -804,10 +1002,10 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 	public MCRAVE(int nodesLog2)
 	{
 		// TODO: cuckoo hashing?
-		this.nodes = new FastHash(nodesLog2, 0.75f, 2);
+		this.nodes = new ConcurrentFastHash<TreeNode>(nodesLog2, 0.75f, 2);
 		setUCTConstant(1.0f);
 		setRAVEBias(0.1f);
-		this.uctTable = new FastUCTTable(6); // TODO: optimal value?
+		this.uctTable = new FastUCTTable(16); // 2 x 256KB, covers most visit counts
 	}
 
 	public MCRAVE(int nodesLog2, int maxLevel, int numIters)
@@ -826,7 +1024,41 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 	@Override
 	public String toString()
 	{
-		return "[nodes=" + nodes + "]";
+		return "[nodes=" + nodes + (offHeapNodes != null ? ", offHeap=" + offHeapNodes : "") + "]";
+	}
+
+	// lets the node table grow up to 2^log2 entries before culling
+	public void setMaxNodesLog2(int log2)
+	{
+		nodes.setGrowLimit(log2);
+	}
+
+	/**
+	 * Keeps nodes culled from the node table in an off-heap table, and
+	 * loads them back when a simulation reaches them again.
+	 * Pass null to stop using it.
+	 */
+	public void setOffHeapNodes(final OffHeapNodeTable table)
+	{
+		this.offHeapNodes = table;
+		if (table == null)
+		{
+			nodes.setEvictionListener(null);
+			return;
+		}
+		nodes.setEvictionListener(new ConcurrentFastHash.EvictionListener<TreeNode>()
+		{
+			@Override
+			public void evicted(long key, TreeNode entry)
+			{
+				table.put(key, entry);
+			}
+		});
+	}
+
+	public OffHeapNodeTable getOffHeapNodes()
+	{
+		return offHeapNodes;
 	}
 
 	public void setUCTConstant(float u)
@@ -843,39 +1075,29 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 
 	public AIDecider newSolver(GameState<?> game)
 	{
-		return new MCRAVEDecider(game);
+		MCRAVEDecider decider = new MCRAVEDecider(game);
+		decider.setTimeLimit(getTimeLimit());
+		return decider;
 	}
 
 	public void reset()
 	{
 		nodes.clear();
+		if (offHeapNodes != null)
+			offHeapNodes.clear();
 	}
 
+	/**
+	 * Starts a new generation: every node's visit counts go back to 1 (keeping
+	 * their average values) the first time a simulation reaches it afterwards,
+	 * so this doesn't have to touch the whole table.
+	 */
 	public void resetVisitCounts()
 	{
-		for (int i = 0; i < nodes.capacity(); i++)
-		{
-			TreeNode entry = nodes.getEntryAtIndex(i);
-			if (entry != null)
-			{
-				// TODO: set everything to 1?
-				entry.numVisits = 1;
-				if (entry.actNodes != null)
-				{
-					for (ActionNode an : entry.actNodes)
-					{
-						if (an != null)
-						{
-							an.n = 1;
-							an.n2 = 1;
-						}
-					}
-				}
-			}
-		}
+		generation++;
 	}
 
-	public FastHash<TreeNode> getNodes()
+	public ConcurrentFastHash<TreeNode> getNodes()
 	{
 		return nodes;
 	}
@@ -897,8 +1119,11 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 		{
 			if (maxLevel <= 0)
 				throw new IllegalArgumentException("Must set maxLevel");
-			if (numIters <= 0)
+			// with a time limit, search until the deadline (or numIters, if set)
+			long deadline = getDeadline();
+			if (numIters <= 0 && deadline == 0)
 				throw new IllegalArgumentException("Must set numIters");
+			int iters = numIters > 0 ? numIters : Integer.MAX_VALUE;
 
 			// TODO: what if not enough moves? repeat?
 			if (resetBeforeSolve)
@@ -920,15 +1145,27 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 			}
 			Line<?> bestMove;
 			int numThreads = useMultipleThreads ? ThreadUtils.numThreadsPerPool() : 1;
-			Sim[] sims = new Sim[numThreads];
-			RandomXorshift128 rnd = new RandomXorshift128();
-			// TODO: keep sims around?
+			Sim[] sims = acquireSimulators(numThreads, initialState, maxLevel);
 			for (int i = 0; i < numThreads; i++)
 			{
-				sims[i] = newSimulator(initialState, maxLevel, new RandomXorshift128(rnd.nextLong(), rnd.nextLong()));
 				sims[i].setInitialChoices(turnActions, turnIndex);
 				sims[i].setSeekingPlayer(seekingPlayer);
+				sims[i].deadline = deadline;
 			}
+			try
+			{
+				bestMove = solve(sims, iters);
+			} finally
+			{
+				releaseSimulators(sims);
+			}
+			return bestMove;
+		}
+
+		private Line<?> solve(Sim[] sims, int iters) throws MoveFailedException, InterruptedException
+		{
+			int numThreads = sims.length;
+			Line<?> bestMove;
 			do
 			{
 				// multiple threads or single thread?
@@ -936,14 +1173,14 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 				{
 					try
 					{
-						iterateMultiThreaded(sims, numIters);
+						iterateMultiThreaded(sims, iters);
 					} catch (ExecutionException e)
 					{
 						throw new RuntimeException(e.getCause());
 					}
 				} else
 				{
-					sims[0].iterate(numIters);
+					sims[0].iterate(iters);
 				}
 
 				if (canDebug())
@@ -973,6 +1210,10 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 				sumStats(totalStats, sims);
 			else
 				totalStats = sims[0].stats;
+			int played = 0;
+			for (int i = 0; i < numThreads; i++)
+				played += sims[i].stats.numGamesPlayed;
+			lastSolveIterations = played;
 			return bestMove;
 		}
 	}
@@ -982,6 +1223,49 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 	public boolean useMultipleThreads = true;
 	public Stats totalStats = new Stats();
 
+	private final ArrayList<Sim> simPool = new ArrayList<Sim>();
+
+	/**
+	 * Takes n simulators from the pool (creating any that are missing)
+	 * and resets them for a search from initialState.
+	 * Give them back with releaseSimulators().
+	 */
+	public Sim[] acquireSimulators(int n, GameState<?> initialState, int maxLevel)
+	{
+		Sim[] sims = new Sim[n];
+		synchronized (simPool)
+		{
+			for (int i = 0; i < n && !simPool.isEmpty(); i++)
+				sims[i] = simPool.remove(simPool.size() - 1);
+		}
+		RandomXorshift128 rnd = null;
+		for (int i = 0; i < n; i++)
+		{
+			if (sims[i] == null)
+			{
+				if (rnd == null)
+					rnd = new RandomXorshift128();
+				sims[i] = newSimulator(initialState, maxLevel, new RandomXorshift128(rnd.nextLong(), rnd.nextLong()));
+			} else
+			{
+				sims[i].setInitialState(initialState, maxLevel);
+				sims[i].exploration = true;
+				sims[i].deadline = 0;
+				sims[i].clearStats();
+			}
+		}
+		return sims;
+	}
+
+	public void releaseSimulators(Sim[] sims)
+	{
+		synchronized (simPool)
+		{
+			for (Sim sim : sims)
+				simPool.add(sim);
+		}
+	}
+
 	public void resetStats()
 	{
 		totalStats = new Stats();
@@ -1017,6 +1301,8 @@ public class MCRAVE extends SearchAlgorithmBase implements AISolver
 				while ((v = iters.addAndGet(-n)) > -n)
 				{
 					sim.iterate(Math.min(n, v + n));
+					if (isPastDeadline(sim.deadline))
+						iters.set(-n);
 				}
 			} catch (Throwable e)
 			{
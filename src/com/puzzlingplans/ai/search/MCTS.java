@@ -5,15 +5,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -26,236 +18,136 @@ import com.puzzlingplans.ai.Line;
 import com.puzzlingplans.ai.MoveFailedException;
 import com.puzzlingplans.ai.MoveResult;
 import com.puzzlingplans.ai.RandomChoice;
-import com.puzzlingplans.ai.search.TranspositionTable.Entry;
-import com.puzzlingplans.ai.search.TranspositionTable.EntryType;
 import com.puzzlingplans.ai.util.BitUtils;
+import com.puzzlingplans.ai.util.FastHash;
 import com.puzzlingplans.ai.util.MiscUtils;
 import com.puzzlingplans.ai.util.RandomXorshift128;
 import com.puzzlingplans.ai.util.ThreadUtils;
 
 public class MCTS extends SearchAlgorithmBase implements AISolver
 {
-	public class Node extends Line<Node> implements Comparator<Node>
-	{
-		private Map<Integer, Node> map = new HashMap<Integer, Node>();
-		private SortedSet<Node> queue = new TreeSet<Node>(this);
-		private long allMoves;
-		private int factor;				// 1 = us, -1 = them, 0 = chance
-
-		// TODO: have to work on terminology -- visited, invalid, etc
-		private int numVisits;
-		private long visitedMoves;
-		private long invalidMoves; // hit from multiple threads
-		private long solvedMoves; // hit from multiple threads
-		private double value = Double.NEGATIVE_INFINITY;
-		private double totalScore;
-		private double totalWeight;
-		private double logNumVisits;
-		Set<Node> transpositions;		// shared set of transpositions
-		// TODO? GameState intermediateState;
-		private int pessimisticBound = Integer.MIN_VALUE;
-		private int optimisticBound = Integer.MAX_VALUE;
+	// lightweight view of a node in the arena, so callers can walk the tree as a Line
+	public class Node extends Line<Node>
+	{
+		final int id;
 		
 		//
 
-		public Node(Node parent, int moveIndex, int factor, long moveMask)
+		Node(Node parent, int id)
+		{
+			this(parent, id, arena.moveIndex.get(id));
+		}
+
+		// a transposed node can be reached by a different move than the one that created it
+		Node(Node parent, int id, int index)
 		{
-			super(parent, moveIndex);
-			this.factor = factor;
-			this.allMoves = moveMask;
+			super(parent, index);
+			this.id = id;
+			if (arena.hasFlag(id, NodeArena.CHANCE))
+				super.setIsChanceNode();
+			if (arena.hasFlag(id, NodeArena.END_OF_TURN))
+				super.setIsEndOfTurn();
 		}
 		
+		private Node child(int childId)
+		{
+			return childId == NONE ? null : new Node(this, childId, indexOfChild(id, childId));
+		}
+
 		public void addScore(double score, double weight)
 		{
-			Node parent = getParent();
-			if (parent != null)
-			{
-				parent.addScore(score, weight);
-			}
-			if (hasOption(Option.IncrementalUpdate) && parent != null)
-			{
-				totalScore += (score - totalScore) * weight / parent.numVisits;
-				totalWeight = 1;
-			} else {
-				totalScore += score * weight;
-				totalWeight += weight;
-			}
-			numVisits++;
-			logNumVisits = Math.log(numVisits);
-			if (parent != null)
-			{
-				recalc();
-				assert(parent.queue.size() == parent.map.size());
-				// recalc() child with least value so it doesn't get stuck
-				// TODO: maybe another fn that doesn't require recalculation
-				Node last = parent.queue.last();
-				if (last != this)
-				{
-					last.recalc();
-				}
-			}
-			assert(totalWeight > 0);
-			assert(!Double.isNaN(totalScore));
+			MCTS.this.addScore(id, score, weight);
 		}
 
-		private void recalc()
+		public double getValue()
 		{
-			Node parent = getParent();
-			parent.queue.remove(this);
-			double winrate = getModifiedWinRate();
-			double explorerate = explorationConstant * Math.sqrt(parent.logNumVisits / numVisits);
-			// if this node has been solved, we can just take the value
-			value = winrate + explorerate;
-			// don't bother with solved nodes in the queue
-			if (isSolved())
-				value = Double.NEGATIVE_INFINITY;
-			parent.queue.add(this);
+			return MCTS.this.getValue(id);
 		}
 
 		public double getAbsoluteWinRate()
 		{
-			return scoreToRatio(getAvgScore());
+			return scoreToRatio(MCTS.this.getAvgScore(id));
 		}
 
 		public double getModifiedWinRate()
 		{
-			return scoreToRatio(getAvgScore() * factor);
-		}
-		
-		private double scoreToRatio(double d)
-		{
-			return (double)d / (GameState.WIN - GameState.LOSE) + 0.5;
+			return MCTS.this.getModifiedWinRate(id);
 		}
 
 		public double getAvgScore()
 		{
-			return totalScore / totalWeight;
+			return MCTS.this.getAvgScore(id);
 		}
 
 		public int numVisits()
 		{
-			return numVisits;
+			return arena.visits.get(id);
 		}
 
 		public boolean hasChildren()
 		{
-			return !map.isEmpty();
+			return MCTS.this.hasChildren(id);
 		}
 
 		public int getChildCount()
 		{
-			return map.size();
+			return BitUtils.countBits(arena.visitedMoves.get(id));
 		}
 		
 		public Collection<Node> getSearchableChildren()
 		{
-			return Collections.unmodifiableCollection(queue);
+			return getAllChildren();
 		}
 
+		// returns a snapshot of the children, in move index order
 		public Collection<Node> getAllChildren()
 		{
-			return Collections.unmodifiableCollection(queue); // TODO: future version may use map.values()
+			ArrayList<Node> list = new ArrayList<Node>();
+			int base = arena.childBase.get(id);
+			if (base != NONE)
+			{
+				long moves = arena.allMoves.get(id);
+				for (int i=0; moves != 0; i++)
+				{
+					int index = Long.numberOfTrailingZeros(moves);
+					moves &= moves - 1;
+					int c = arena.childSlots.get(base + i);
+					if (c != NONE)
+						list.add(new Node(this, c, index));
+				}
+			}
+			return Collections.unmodifiableCollection(list);
 		}
 
+		// returns the child with the highest UCB value, or null if all are solved
 		public Node getBestUnexploredNode()
 		{
-			assert (hasChildren());
-			Node node = queue.first();
-			if (node.isSolved())
-			{
-				Iterator<Node> it = queue.iterator();
-				it.next();
-				while (it.hasNext())
-				{
-					Node n = it.next();
-					if (!n.isSolved())
-						return n;
-				}
-				return null;
-			} else 
-				return node;
+			return child(getBestChild(id));
 		}
 		
 		public Node getMostVisitedNode()
 		{
-			assert(hasChildren());
-			Node bestnode = null;
-			int bestval = Integer.MIN_VALUE;
-			for (Node node : map.values())
-			{
-				if (node.numVisits > bestval)
-				{
-					bestval = node.numVisits;
-					bestnode = node;
-				}
-			}
-			return bestnode;
+			return child(getMostVisitedChild(id));
 		}
 
 		public Node getMostWinningNode()
 		{
-			// TODO: assertion fires sometimes, combine with robustness? (aka visit count)
-			Node bestnode = null;
-			double bestval = Double.NEGATIVE_INFINITY;
-			for (Node node : map.values())
-			{
-				double winrate = node.getModifiedWinRate();
-				if (winrate > bestval)
-				{
-					bestval = winrate;
-					bestnode = node;
-				}
-			}
-			return bestnode;
+			return child(getMostWinningChild(id));
 		}
 
 		public Node getMostRobustNode()
 		{
-			// TODO? what if it's a solved node?
-			Node n = getMostWinningNode();
-			return (n != null && n.hasChildren()) ? n : getMostVisitedNode();
+			return child(getMostRobustChild(id));
 		}
 
 		public Node createOrGet(int index, int factor, long moveMask)
 		{
-			Node newnode = map.get(index);
-			if (newnode != null)
-			{
-				assert(newnode.allMoves == moveMask);
-				return newnode;
-			}
-
-			newnode = new Node(this, index, factor, moveMask);
-			map.put(index, newnode);
-			assert((visitedMoves & (1L<<index)) == 0);
-			visitedMoves |= 1L << index;
-			stats.totalNodeCount++;
-			if (map.size() > 1)
-				stats.totalLeafCount++;
-			if (debug)
-				prdebug(newnode, "Created " + stats.totalNodeCount + "th node");
-			return newnode;
+			return child(MCTS.this.createOrGet(id, index, factor, moveMask, stats));
 		}
 
 		public String toDesc()
 		{
-			return "(#" + getMoveIndex() + " " + (float)value + " " + numVisits + " " + (float)getAbsoluteWinRate()*100 + "%" 
-				+ " " + getChildCount() + "+" + BitUtils.countBits(invalidMoves|solvedMoves) + "<=" + BitUtils.countBits(allMoves)
-				+ " " + factor
-				+ " " + score2ratiostr(pessimisticBound) + "/" + score2ratiostr(optimisticBound)
-				+ (isSolved() ? " solved" : "")
-				+ (isComplete() ? " complete" : "")
-				+ ")";
-		}
-
-		private String score2ratiostr(int score)
-		{
-			if (score == Integer.MIN_VALUE)
-				return "-Inf";
-			if (score == Integer.MAX_VALUE)
-				return "+Inf";
-			else
-				return MiscUtils.format("%1.3f", score * 0.5 / GameState.WIN + 0.5);
+			return MCTS.this.toDesc(id);
 		}
 
 		public String toFullString()
@@ -263,164 +155,59 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			return (getParent() != null && getParent().getParent() != null ? getParent().toFullString() : "") + toDesc();
 		}
 		
-		@Override
-		public int compare(Node o1, Node o2)
-		{
-			int signum = (int) Math.signum(o2.value - o1.value);
-			if (signum == 0)
-				signum = (int) Math.signum(o2.getMoveIndex() - o1.getMoveIndex());
-			return signum;
-		}
-
 		public Node getChildWithIndex(int index)
 		{
-			return map.get(index);
+			return child(arena.getChild(id, index));
 		}
 
 		public Node getPredeterminedNode()
 		{
-			// if initial choices set, follow them down the beginning of the move path
-			// TODO: what if not there?
-			if (initialChoices != null && getLevel() < initialChoices.length)
-			{
-				int index = initialChoices[getLevel()];
-				// moves can be marked invalid by other threads, we may get unlucky
-				//assert(!isInvalidIndex(index));
-				return getChildWithIndex(index);
-			}
-			else
-				return null;
+			return child(getPredeterminedChild(id));
 		}
 
 		public void setInvalidIndex(int index)
 		{
-			long mask = 1L << index;
-			assert ((mask & allMoves) != 0);
-			invalidMoves |= mask;
-			if (debug)
-				prdebug(this, "setInvalidIndex " + index);
-			// TODO: if all moves are invalid, set node to invalid in parent?
-			if (invalidMoves == allMoves && getParent() != null)
-			{
-				//getParent().setInvalidIndex(getMoveIndex());
-				assert(false);
-			}
+			MCTS.this.setInvalidIndex(id, index);
 		}
 
-		private boolean isInvalidIndex(int index)
-		{
-			return ((1L << index) & invalidMoves) != 0;
-		}
-		
 		public void setSolvedIndex(int index)
 		{
-			long mask = 1L << index;
-			assert ((mask & allMoves) != 0);
-			solvedMoves |= mask;
-			if (debug)
-				prdebug(this, "setSolvedIndex " + index);
-			// if all moves are invalid, set node to invalid in parent
-			if (isSolved() && getParent() != null)
-			{
-				getParent().setSolvedIndex(getMoveIndex());
-			}
+			MCTS.this.setSolvedIndex(id, index);
 		}
 
 		// return true if all non-invalid children were visited
 		public boolean isComplete()
 		{
-			assert((allMoves | visitedMoves | invalidMoves) == allMoves);
-			return allMoves == (visitedMoves | invalidMoves);
+			return MCTS.this.isComplete(id);
 		}
 
 		public void setSolved(int score)
 		{
-			if (hasOption(Option.SolveSubtrees))
-			{
-				//assert(allMoves != 0);
-				solvedMoves = allMoves;
-				pessimisticBound = optimisticBound = score;
-				
-				// update index, bounds
-				if (getParent() != null)
-				{
-					getParent().setSolvedIndex(getMoveIndex());
-					// TODO: chance nodes?
-					getParent().updatePessimisticBounds(this);
-					getParent().updateOptimisticBounds(this);
-				}
-			} else {
-				addScore(0, 0);
-			}
+			MCTS.this.setSolved(id, score);
 		}
 
-		private void updatePessimisticBounds(Node child)
-		{
-			int oldPess = pessimisticBound;
-			if (oldPess < child.pessimisticBound)
-			{
-				if (child.factor > 0) // max node?
-				{
-					pessimisticBound = child.pessimisticBound;
-					if (getParent() != null)
-						getParent().updatePessimisticBounds(this);
-				}
-				else if (child.factor < 0 && isComplete()) // min node?
-				{
-					pessimisticBound = GameState.WIN;
-					for (Node n : getAllChildren())
-						if (n.pessimisticBound < pessimisticBound)
-							pessimisticBound = n.pessimisticBound;
-					if (oldPess < pessimisticBound && getParent() != null)
-						getParent().updatePessimisticBounds(this);
-				}
-				prune();
-			}
-		}
-
-		private void updateOptimisticBounds(Node child)
+		public long getAllMoves()
 		{
-			int oldOpti = optimisticBound;
-			if (oldOpti > child.optimisticBound)
-			{
-				if (child.factor > 0 && isComplete()) // max node?
-				{
-					optimisticBound = GameState.LOSE;
-					for (Node n : getAllChildren())
-						if (n.optimisticBound > optimisticBound)
-							optimisticBound = n.optimisticBound;
-					if (oldOpti > optimisticBound && getParent() != null)
-						getParent().updateOptimisticBounds(this);
-				}
-				else if (child.factor < 0) // min node?
-				{
-					optimisticBound = child.optimisticBound;
-					if (getParent() != null)
-						getParent().updateOptimisticBounds(this);
-				}
-				prune();
-			}
+			return arena.allMoves.get(id);
 		}
 
-		private void prune()
+		public boolean isSolved()
 		{
-			if (optimisticBound <= pessimisticBound && hasOption(Option.PruneSubtrees))
-			{
-				solvedMoves = allMoves;
-				stats.totalPruned++;
-			}
-			if (debug)
-				prdebug(this, "bounds = " + score2ratiostr(pessimisticBound) + "/" + score2ratiostr(optimisticBound) + " " + isSolved());
+			return MCTS.this.isSolved(id);
 		}
 
-		public long getAllMoves()
+		@Override
+		public void setIsChanceNode()
 		{
-			return allMoves;
+			super.setIsChanceNode();
+			arena.setFlag(id, NodeArena.CHANCE);
 		}
 
-		public boolean isSolved()
+		@Override
+		public void setIsEndOfTurn()
 		{
-			return (solvedMoves | invalidMoves) == allMoves && hasOption(Option.SolveSubtrees);
+			super.setIsEndOfTurn();
+			arena.setFlag(id, NodeArena.END_OF_TURN);
 		}
 
 		public void dumpToLevel(int maxl)
@@ -444,9 +231,467 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		}
 	}
 	
+	// NODE OPERATIONS (on arena ids)
+
+	// builds a view of a node, along with its parents
+	Node nodeFor(int id)
+	{
+		return id == NONE ? null : new Node(nodeFor(arena.parent.get(id)), id);
+	}
+
+	void addScore(int id, double score, double weight)
+	{
+		// find the path once, then score it from the root down
+		// (IncrementalUpdate needs each parent's visits to be updated first)
+		int n = 0;
+		for (int p = id; p != NONE; p = arena.parent.get(p))
+			n++;
+		int[] path = new int[n];
+		for (int p = id; p != NONE; p = arena.parent.get(p))
+			path[--n] = p;
+		int parent = NONE;
+		for (int node : path)
+		{
+			addScore(parent, node, score, weight);
+			parent = node;
+		}
+	}
+
+	// adds to a single node, reached from the given parent
+	private void addScore(int parent, int id, double score, double weight)
+	{
+		if (hasOption(Option.IncrementalUpdate) && parent != NONE)
+		{
+			int parentVisits = arena.visits.get(parent);
+			long oldBits, newBits;
+			do {
+				oldBits = arena.totalScore.get(id);
+				double totalScore = Double.longBitsToDouble(oldBits);
+				totalScore += (score - totalScore) * weight / parentVisits;
+				newBits = Double.doubleToRawLongBits(totalScore);
+			} while (!arena.totalScore.compareAndSet(id, oldBits, newBits));
+			arena.totalWeight.setDouble(id, 1);
+		} else {
+			arena.totalScore.addDouble(id, score * weight);
+			arena.totalWeight.addDouble(id, weight);
+		}
+		arena.visits.addAndGet(id, 1);
+		assert(arena.totalWeight.getDouble(id) > 0);
+		assert(!Double.isNaN(arena.totalScore.getDouble(id)));
+	}
+
+	// UCB value, with in-flight simulations (TreeParallel only) counted as losses
+	private double getUCBValue(int id, double logParentVisits)
+	{
+		int n = arena.visits.get(id);
+		int vl = treeParallel ? arena.virtualLoss.get(id) : 0;
+		if (n == 0)
+		{
+			// created by another thread, but not yet scored
+			return vl == 0 ? Double.POSITIVE_INFINITY : explorationConstant * Math.sqrt(logParentVisits / vl);
+		}
+		double winrate = getModifiedWinRate(id) * n / (n + vl);
+		return winrate + explorationConstant * Math.sqrt(logParentVisits / (n + vl));
+	}
+
+	private double getValue(int id)
+	{
+		int parent = arena.parent.get(id);
+		if (parent == NONE || isSolved(id))
+			return Double.NEGATIVE_INFINITY;
+		return getUCBValue(id, Math.log(arena.visits.get(parent)));
+	}
+
+	private double getModifiedWinRate(int id)
+	{
+		return scoreToRatio(getAvgScore(id) * arena.factor.get(id));
+	}
+	
+	private double scoreToRatio(double d)
+	{
+		return (double)d / (GameState.WIN - GameState.LOSE) + 0.5;
+	}
+
+	private double getAvgScore(int id)
+	{
+		return arena.totalScore.getDouble(id) / arena.totalWeight.getDouble(id);
+	}
+
+	private boolean hasChildren(int id)
+	{
+		return arena.visitedMoves.get(id) != 0;
+	}
+
+	int getBestChild(int id)
+	{
+		assert (hasChildren(id));
+		int base = arena.childBase.get(id);
+		double logVisits = Math.log(Math.max(1, arena.visits.get(id)));
+		int best = NONE;
+		double bestval = Double.NEGATIVE_INFINITY;
+		// iterate backwards so ties go to the highest move index
+		for (int i=arena.numChildSlots(id)-1; i>=0; i--)
+		{
+			int c = arena.childSlots.get(base + i);
+			if (c == NONE)
+				continue;
+			if (isSolved(c))
+			{
+				// transposed children only tell the parent that created them
+				if (arena.parent.get(c) != id)
+					setSolvedIndex(id, indexOfChild(id, c));
+				continue;
+			}
+			double val = getUCBValue(c, logVisits);
+			if (val > bestval || best == NONE)
+			{
+				bestval = val;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private int getMostVisitedChild(int id)
+	{
+		assert(hasChildren(id));
+		int base = arena.childBase.get(id);
+		int best = NONE;
+		int bestval = Integer.MIN_VALUE;
+		for (int i=0, n=arena.numChildSlots(id); i<n; i++)
+		{
+			int c = arena.childSlots.get(base + i);
+			if (c != NONE && arena.visits.get(c) > bestval)
+			{
+				bestval = arena.visits.get(c);
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private int getMostWinningChild(int id)
+	{
+		// TODO: assertion fires sometimes, combine with robustness? (aka visit count)
+		int base = arena.childBase.get(id);
+		if (base == NONE)
+			return NONE;
+		int best = NONE;
+		double bestval = Double.NEGATIVE_INFINITY;
+		for (int i=0, n=arena.numChildSlots(id); i<n; i++)
+		{
+			int c = arena.childSlots.get(base + i);
+			if (c == NONE)
+				continue;
+			double winrate = getModifiedWinRate(c);
+			if (winrate > bestval)
+			{
+				bestval = winrate;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private int getMostRobustChild(int id)
+	{
+		// TODO? what if it's a solved node?
+		int c = getMostWinningChild(id);
+		return (c != NONE && hasChildren(c)) ? c : getMostVisitedChild(id);
+	}
+
+	int createOrGet(int id, int index, int factor, long moveMask, Stats stats)
+	{
+		return createOrGet(id, index, factor, moveMask, 0, stats);
+	}
+
+	// positionKey != 0 lets the child be shared with a transposition (see setTranspositionTableSize())
+	int createOrGet(int id, int index, int factor, long moveMask, long positionKey, Stats stats)
+	{
+		long allMoves = arena.allMoves.get(id);
+		assert (((1L << index) & allMoves) != 0);
+		int base = arena.childBase.get(id);
+		if (base == NONE)
+			base = arena.allocateChildren(id);
+		int slot = base + NodeArena.childSlot(allMoves, index);
+		int newnode = arena.childSlots.get(slot);
+		if (newnode != NONE)
+		{
+			assert(arena.allMoves.get(newnode) == moveMask);
+			return newnode;
+		}
+
+		int shared = positionKey != 0 ? findTransposition(id, factor, moveMask, positionKey) : NONE;
+		newnode = shared != NONE ? shared : arena.allocate(id, index, factor, moveMask);
+		// another thread may have beaten us to it (the id we allocated is wasted)
+		if (!arena.childSlots.compareAndSet(slot, NONE, newnode))
+			return arena.childSlots.get(slot);
+		assert((arena.visitedMoves.get(id) & (1L<<index)) == 0);
+		arena.visitedMoves.orMask(id, 1L << index);
+		if (shared != NONE)
+		{
+			stats.totalTranspositions++;
+			return newnode;
+		}
+		if (positionKey != 0)
+			transpositions.insertEntry(positionKey, positionKey, newnode);
+		stats.totalNodeCount++;
+		if (BitUtils.countBits(arena.visitedMoves.get(id)) > 1)
+			stats.totalLeafCount++;
+		if (debug)
+			prdebug(newnode, "Created " + stats.totalNodeCount + "th node");
+		return newnode;
+	}
+
+	// an existing node for the same position that could be a child of this one
+	private int findTransposition(int id, int factor, long moveMask, long positionKey)
+	{
+		Integer t = transpositions.getEntryAt(positionKey, positionKey);
+		if (t == null)
+			return NONE;
+		int node = t;
+		// guard against hash collisions
+		if (arena.level.get(node) != arena.level.get(id) + 1 || arena.allMoves.get(node) != moveMask || arena.factor.get(node) != factor)
+			return NONE;
+		return node;
+	}
+
+	// move index of a child; transposed children may have been created under another parent
+	private int indexOfChild(int id, int child)
+	{
+		if (arena.parent.get(child) == id)
+			return arena.moveIndex.get(child);
+		int base = arena.childBase.get(id);
+		long moves = arena.allMoves.get(id);
+		for (int i=0; moves != 0; i++)
+		{
+			int index = Long.numberOfTrailingZeros(moves);
+			moves &= moves - 1;
+			if (arena.childSlots.get(base + i) == child)
+				return index;
+		}
+		return arena.moveIndex.get(child);
+	}
+
+	private String toDesc(int id)
+	{
+		long invalidMoves = arena.invalidMoves.get(id);
+		long solvedMoves = arena.solvedMoves.get(id);
+		return "(#" + arena.moveIndex.get(id) + " " + (float)getValue(id) + " " + arena.visits.get(id) + " " + (float)scoreToRatio(getAvgScore(id))*100 + "%" 
+			+ " " + BitUtils.countBits(arena.visitedMoves.get(id)) + "+" + BitUtils.countBits(invalidMoves|solvedMoves) + "<=" + BitUtils.countBits(arena.allMoves.get(id))
+			+ " " + arena.factor.get(id)
+			+ " " + score2ratiostr(arena.pessimisticBound.get(id)) + "/" + score2ratiostr(arena.optimisticBound.get(id))
+			+ (isSolved(id) ? " solved" : "")
+			+ (isComplete(id) ? " complete" : "")
+			+ ")";
+	}
+
+	private String score2ratiostr(int score)
+	{
+		if (score == Integer.MIN_VALUE)
+			return "-Inf";
+		if (score == Integer.MAX_VALUE)
+			return "+Inf";
+		else
+			return MiscUtils.format("%1.3f", score * 0.5 / GameState.WIN + 0.5);
+	}
+
+	private int getPredeterminedChild(int id)
+	{
+		// if initial choices set, follow them down the beginning of the move path
+		// TODO: what if not there?
+		int level = depth(id);
+		if (initialChoices != null && level < initialChoices.length)
+		{
+			int index = initialChoices[level];
+			// moves can be marked invalid by other threads, we may get unlucky
+			//assert(!isInvalidIndex(index));
+			return arena.getChild(id, index);
+		}
+		else
+			return NONE;
+	}
+
+	void setInvalidIndex(int id, int index)
+	{
+		long mask = 1L << index;
+		assert ((mask & arena.allMoves.get(id)) != 0);
+		arena.invalidMoves.orMask(id, mask);
+		if (debug)
+			prdebug(id, "setInvalidIndex " + index);
+		// TODO: if all moves are invalid, set node to invalid in parent?
+		if (arena.invalidMoves.get(id) == arena.allMoves.get(id) && arena.parent.get(id) != NONE)
+		{
+			//setInvalidIndex(parent, moveIndex);
+			assert(false);
+		}
+	}
+
+	private boolean isInvalidIndex(int id, int index)
+	{
+		return ((1L << index) & arena.invalidMoves.get(id)) != 0;
+	}
+	
+	void setSolvedIndex(int id, int index)
+	{
+		long mask = 1L << index;
+		assert ((mask & arena.allMoves.get(id)) != 0);
+		arena.solvedMoves.orMask(id, mask);
+		if (debug)
+			prdebug(id, "setSolvedIndex " + index);
+		// if all moves are invalid, set node to invalid in parent
+		int parent = arena.parent.get(id);
+		if (isSolved(id) && parent != NONE)
+		{
+			setSolvedIndex(parent, arena.moveIndex.get(id));
+		}
+	}
+
+	// return true if all non-invalid children were visited
+	boolean isComplete(int id)
+	{
+		long allMoves = arena.allMoves.get(id);
+		long visitedMoves = arena.visitedMoves.get(id);
+		long invalidMoves = arena.invalidMoves.get(id);
+		assert((allMoves | visitedMoves | invalidMoves) == allMoves);
+		return allMoves == (visitedMoves | invalidMoves);
+	}
+
+	void setSolved(int id, int score)
+	{
+		if (hasOption(Option.SolveSubtrees))
+		{
+			//assert(allMoves != 0);
+			arena.solvedMoves.set(id, arena.allMoves.get(id));
+			arena.pessimisticBound.set(id, score);
+			arena.optimisticBound.set(id, score);
+			
+			// update index, bounds
+			int parent = arena.parent.get(id);
+			if (parent != NONE)
+			{
+				setSolvedIndex(parent, arena.moveIndex.get(id));
+				// TODO: chance nodes?
+				updatePessimisticBounds(parent, id);
+				updateOptimisticBounds(parent, id);
+			}
+		} else {
+			addScore(id, 0, 0);
+		}
+	}
+
+	private void updatePessimisticBounds(int id, int child)
+	{
+		int oldPess = arena.pessimisticBound.get(id);
+		int childPess = arena.pessimisticBound.get(child);
+		if (oldPess < childPess)
+		{
+			int parent = arena.parent.get(id);
+			int childFactor = arena.factor.get(child);
+			if (childFactor > 0) // max node?
+			{
+				arena.pessimisticBound.set(id, childPess);
+				if (parent != NONE)
+					updatePessimisticBounds(parent, id);
+			}
+			else if (childFactor < 0 && isComplete(id)) // min node?
+			{
+				int pess = GameState.WIN;
+				int base = arena.childBase.get(id);
+				for (int i=0, n=arena.numChildSlots(id); i<n; i++)
+				{
+					int c = arena.childSlots.get(base + i);
+					if (c != NONE && arena.pessimisticBound.get(c) < pess)
+						pess = arena.pessimisticBound.get(c);
+				}
+				arena.pessimisticBound.set(id, pess);
+				if (oldPess < pess && parent != NONE)
+					updatePessimisticBounds(parent, id);
+			}
+			prune(id);
+		}
+	}
+
+	private void updateOptimisticBounds(int id, int child)
+	{
+		int oldOpti = arena.optimisticBound.get(id);
+		int childOpti = arena.optimisticBound.get(child);
+		if (oldOpti > childOpti)
+		{
+			int parent = arena.parent.get(id);
+			int childFactor = arena.factor.get(child);
+			if (childFactor > 0 && isComplete(id)) // max node?
+			{
+				int opti = GameState.LOSE;
+				int base = arena.childBase.get(id);
+				for (int i=0, n=arena.numChildSlots(id); i<n; i++)
+				{
+					int c = arena.childSlots.get(base + i);
+					if (c != NONE && arena.optimisticBound.get(c) > opti)
+						opti = arena.optimisticBound.get(c);
+				}
+				arena.optimisticBound.set(id, opti);
+				if (oldOpti > opti && parent != NONE)
+					updateOptimisticBounds(parent, id);
+			}
+			else if (childFactor < 0) // min node?
+			{
+				arena.optimisticBound.set(id, childOpti);
+				if (parent != NONE)
+					updateOptimisticBounds(parent, id);
+			}
+			prune(id);
+		}
+	}
+
+	private void prune(int id)
+	{
+		int pess = arena.pessimisticBound.get(id);
+		int opti = arena.optimisticBound.get(id);
+		if (opti <= pess && hasOption(Option.PruneSubtrees))
+		{
+			arena.solvedMoves.set(id, arena.allMoves.get(id));
+			stats.totalPruned++;
+		}
+		if (debug)
+			prdebug(id, "bounds = " + score2ratiostr(pess) + "/" + score2ratiostr(opti) + " " + isSolved(id));
+	}
+
+	// level relative to the current root
+	private int depth(int id)
+	{
+		return arena.level.get(id) - rootLevel;
+	}
+
+	// true if the tree below this node was built for the player choosing at it
+	private boolean isSeekingPlayerNode(int id)
+	{
+		int base = arena.childBase.get(id);
+		if (base == NONE)
+			return false;
+		int n = arena.numChildSlots(id);
+		for (int i=0; i<n; i++)
+		{
+			int child = arena.childSlots.get(base + i);
+			if (child != NONE)
+				return arena.factor.get(child) == 1;
+		}
+		return false;
+	}
+
+	boolean isSolved(int id)
+	{
+		return hasOption(Option.SolveSubtrees) && (arena.solvedMoves.get(id) | arena.invalidMoves.get(id)) == arena.allMoves.get(id);
+	}
+	
 	//
 
-	private Node root;
+	private static final int NONE = NodeArena.NONE;
+
+	private final NodeArena arena = new NodeArena();
+	private volatile int root = NONE;
+	private int nodeBudget;		// collapse the tree when it reaches this many nodes, 0 = no limit
+	private int rootLevel;	// arena level of the root, nonzero after advance()
 	private int levelSlop;
 	private long randomSeed;
 	private boolean debug;
@@ -469,11 +714,33 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		SolveSubtrees,
 		PruneSubtrees,
 		IncrementalUpdate, 
+		ReuseTree,		// Solver searches this tree in place, so it can be advance()d between turns
 	};
 	
-	private TranspositionTable transpositionTable;
+	// how worker threads share the tree
+	public enum Parallelism {
+		Synchronized,	// select and backprop hold the MCTS monitor
+		TreeParallel,	// lock-free, with atomic node counters and virtual loss
+		RootParallel,	// each thread searches a private tree, root statistics are merged into this one
+	};
+
+	private Parallelism parallelism = Parallelism.Synchronized;
+	private boolean treeParallel;
+	private int virtualLoss = 1;
+	private int backpropBatchSize = 1;
+	private MCTS[] rootWorkers;		// private trees of RootParallel threads, kept between calls
+	private int rootMergeInterval;	// msec between merges in RootParallel mode, 0 = only at the end
+
+	// node ids by position, for sharing transposed nodes (null = plain tree)
+	private FastHash<Integer> transpositions;
+
+	// copies of the state at frequently visited nodes, keyed by node id
+	private FastHash<GameState<?>> snapshots;
+	private int snapshotsLog2;
+	private int snapshotVisits;
 
 	private int[] initialChoices;	// limit search from root
+	private long deadline;			// System.nanoTime() to stop searching at, 0 = none
 
 	// TODO: share with simulator?
 	private Random masterRandom;
@@ -489,6 +756,23 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		int totalMoves;
 		int totalGoodMoves;
 		int totalPruned;
+		int totalTranspositions;
+		int totalCollapsed;
+
+		void add(Stats s)
+		{
+			totalNodeCount += s.totalNodeCount;
+			totalLeafCount += s.totalLeafCount;
+			totalPlays += s.totalPlays;
+			totalWins += s.totalWins;
+			totalLosses += s.totalLosses;
+			totalCompleted += s.totalCompleted;
+			totalMoves += s.totalMoves;
+			totalGoodMoves += s.totalGoodMoves;
+			totalPruned += s.totalPruned;
+			totalTranspositions += s.totalTranspositions;
+			totalCollapsed += s.totalCollapsed;
+		}
 	}
 	
 	Stats stats = new Stats();
@@ -520,19 +804,312 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		this.losingScore = mcts.losingScore;
 		this.goodMoves = mcts.goodMoves;
 		this.goodMoveProb = mcts.goodMoveProb;
+		this.virtualLoss = mcts.virtualLoss;
+		this.backpropBatchSize = mcts.backpropBatchSize;
+		setSnapshotCache(mcts.snapshotsLog2, mcts.snapshotVisits);
+		this.nodeBudget = mcts.nodeBudget;
+		setParallelism(mcts.parallelism);
 		// got to clear trans table because we are going to create new nodes (TODO: what if shared between threads?)
-		this.transpositionTable = mcts.transpositionTable;
-		if (transpositionTable != null)
-			transpositionTable.clear();
+		this.transpositions = mcts.transpositions;
+		if (transpositions != null)
+			transpositions.clear();
 	}
 
+	// discards the tree; node memory is kept and reused by the next search,
+	// so any Node views obtained before this call become invalid
 	@Override
 	public void reset()
 	{
-		this.root = null;
+		this.root = NONE;
+		this.rootLevel = 0;
+		this.rootWorkers = null;
+		arena.reset();
+		// node ids are about to be reused
+		if (snapshots != null)
+			snapshots.clear();
+		if (transpositions != null)
+			transpositions.clear();
 		setRandomSeed(randomSeed);
 	}
 
+	/**
+	 * Limits the tree to about maxNodes nodes (0 for no limit).
+	 * When it gets there, collapseTree() frees the least-visited subtrees,
+	 * so long searches can run in fixed memory.
+	 */
+	public void setNodeBudget(int maxNodes)
+	{
+		assert(maxNodes >= 0);
+		this.nodeBudget = maxNodes;
+	}
+
+	private boolean isOverBudget()
+	{
+		return nodeBudget > 0 && arena.size() >= nodeBudget;
+	}
+
+	/**
+	 * Frees the least-visited nodes (and anything no longer reachable from the root)
+	 * until at most half the node budget is in use. Nodes that lose their children
+	 * become leaves again, keeping their statistics, and are re-expanded as needed.
+	 * Must not be called while a search is running; Node views and cached
+	 * states are invalidated, transpositions of surviving nodes are kept.
+	 */
+	public synchronized void collapseTree()
+	{
+		int r = root;
+		int n = arena.size();
+		if (r == NONE || n == 0)
+			return;
+		// keep nodes with more than this many visits
+		int target = nodeBudget > 0 ? nodeBudget / 2 : n;
+		int threshold = -1;
+		if (n > target)
+		{
+			int[] visits = new int[n];
+			for (int id=1; id<=n; id++)
+				visits[id-1] = arena.visits.get(id);
+			Arrays.sort(visits);
+			threshold = visits[n - target];
+		}
+		stats.totalCollapsed += compactTree(threshold);
+	}
+
+	// Frees every node that isn't reachable from the root through nodes with more
+	// than threshold visits, and slides the rest down to the lowest ids.
+	// Returns the number of nodes freed.
+	private int compactTree(int threshold)
+	{
+		int r = root;
+		int n = arena.size();
+		// mark nodes reachable from the root through nodes we keep
+		// (a transposed node may survive when the parent that created it doesn't)
+		int[] forward = new int[n+1];		// old id -> new id, 0 = freed
+		int[] liveParent = new int[n+1];
+		int[] stack = new int[n];
+		int sp = 0;
+		stack[sp++] = r;
+		forward[r] = -1;
+		int numSlots = 0;
+		while (sp > 0)
+		{
+			int id = stack[--sp];
+			int base = arena.childBase.get(id);
+			if (base == NONE)
+				continue;
+			int slots = arena.numChildSlots(id);
+			for (int i=0; i<slots; i++)
+			{
+				int c = arena.childSlots.get(base + i);
+				if (c != NONE && forward[c] == 0 && arena.visits.get(c) > threshold)
+				{
+					forward[c] = -1;
+					liveParent[c] = id;
+					stack[sp++] = c;
+				}
+			}
+		}
+		// live nodes slide down to the lowest ids, keeping their order
+		int numNodes = 0;
+		for (int id=1; id<=n; id++)
+			if (forward[id] != 0)
+				forward[id] = ++numNodes;
+		for (int id=1; id<=n; id++)
+		{
+			int to = forward[id];
+			if (to == 0)
+				continue;
+			int parent = arena.parent.get(id);
+			if (id == r)
+				parent = NONE;
+			else if (forward[parent] == 0)
+				parent = liveParent[id];
+			arena.move(id, to);
+			arena.parent.set(to, parent == NONE ? NONE : forward[parent]);
+			// the snapshot cache is keyed by node id, so it's cleared below
+			arena.clearFlag(to, NodeArena.SNAPSHOT);
+		}
+		// rebuild the child slabs, dropping freed children (slots are read before any are overwritten)
+		int[] slabs = new int[arena.numChildSlots(forward[r])];
+		for (int id=1; id<=numNodes; id++)
+		{
+			int base = arena.childBase.get(id);
+			if (base == NONE)
+				continue;
+			int slots = arena.numChildSlots(id);
+			long moves = arena.allMoves.get(id);
+			long visited = 0;
+			if (numSlots + slots > slabs.length)
+				slabs = Arrays.copyOf(slabs, Math.max(slabs.length * 2, numSlots + slots));
+			for (int i=0; i<slots; i++)
+			{
+				int index = Long.numberOfTrailingZeros(moves);
+				moves &= moves - 1;
+				int c = arena.childSlots.get(base + i);
+				c = c != NONE ? forward[c] : NONE;
+				slabs[numSlots + i] = c;
+				if (c != NONE)
+					visited |= 1L << index;
+			}
+			arena.visitedMoves.set(id, visited);
+			if (visited != 0)
+			{
+				arena.childBase.set(id, numSlots + 1);
+				numSlots += slots;
+			} else
+				arena.childBase.set(id, NONE);
+		}
+		for (int i=0; i<numSlots; i++)
+			arena.childSlots.set(i + 1, slabs[i]);
+		arena.truncate(numNodes, numSlots);
+		if (debug)
+			prdebug(NONE, "compactTree(): " + n + " -> " + numNodes + " nodes, threshold " + threshold);
+		this.root = forward[r];
+		if (snapshots != null)
+			snapshots.clear();
+		if (transpositions != null)
+			remapTranspositions(forward, n);
+		return n - numNodes;
+	}
+
+	// keeps the transpositions of surviving nodes under their new ids
+	private void remapTranspositions(int[] forward, int n)
+	{
+		int count = 0;
+		long[] keys = new long[transpositions.keyCount()];
+		int[] ids = new int[keys.length];
+		for (int i=0; i<transpositions.capacity(); i++)
+		{
+			Integer t = transpositions.getEntryAtIndex(i);
+			if (t == null || t > n || forward[t] <= 0)
+				continue;
+			if (count == keys.length)
+			{
+				keys = Arrays.copyOf(keys, count * 2 + 1);
+				ids = Arrays.copyOf(ids, keys.length);
+			}
+			keys[count] = transpositions.getKeyAtIndex(i);
+			ids[count] = forward[t];
+			count++;
+		}
+		transpositions.clear();
+		for (int i=0; i<count; i++)
+			transpositions.insertEntry(keys[i], keys[i], ids[i]);
+	}
+
+	/**
+	 * Moves the root down the tree along the moves played since the last
+	 * search (usually our move and the opponent's reply), keeping the
+	 * statistics of the subtree below it. Resets the tree and returns false
+	 * if that node was never expanded or isn't the seeking player's turn.
+	 * Nodes outside the new subtree are freed and the rest compacted, as in
+	 * collapseTree(), so the tree doesn't grow with every move of a game.
+	 * Must not be called while a search is running.
+	 */
+	public boolean advance(int[] indices, int len)
+	{
+		if (rootWorkers != null)
+		{
+			// every private tree has to follow, then we merge again
+			for (MCTS worker : rootWorkers)
+			{
+				if (!worker.advance(indices, len))
+				{
+					reset();
+					return false;
+				}
+			}
+			mergeRootWorkers();
+			return root != NONE;
+		}
+		int node = root;
+		for (int i=0; i<len && node != NONE; i++)
+			node = arena.getChild(node, indices[i]);
+		if (node == NONE || !isSeekingPlayerNode(node))
+		{
+			reset();
+			return false;
+		}
+		arena.parent.set(node, NONE);
+		this.rootLevel = arena.level.get(node);
+		this.root = node;
+		compactTree(-1);
+		return true;
+	}
+
+	public boolean advance(Line<?> move)
+	{
+		int[] indices = move.getIndices();
+		return advance(indices, indices.length);
+	}
+
+	/**
+	 * Selects how threads in iterateMultiThreaded() share the tree.
+	 * Resets the tree.
+	 */
+	public void setParallelism(Parallelism p)
+	{
+		this.parallelism = p;
+		this.treeParallel = p == Parallelism.TreeParallel;
+		reset();
+	}
+
+	public Parallelism getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * In TreeParallel mode, each thread buffers the scores of n playouts and
+	 * applies them in one pass, so nodes shared by several of the paths
+	 * (the root, at least) get one atomic update per batch instead of one per playout.
+	 * The batch's virtual losses stay on its paths until then, so selection
+	 * still steers around the pending results. 1 applies scores immediately.
+	 */
+	public void setBackpropBatchSize(int n)
+	{
+		assert(n >= 1);
+		this.backpropBatchSize = n;
+	}
+
+	/**
+	 * In RootParallel mode, merges the threads' trees into this one every
+	 * millis msec (so the search can stop early once the root is solved),
+	 * or only when the search ends if 0.
+	 */
+	public void setRootMergeInterval(int millis)
+	{
+		assert(millis >= 0);
+		this.rootMergeInterval = millis;
+	}
+
+	// number of losses added to each node on a path while a TreeParallel simulation is in flight
+	public void setVirtualLoss(int n)
+	{
+		assert(n >= 0);
+		this.virtualLoss = n;
+	}
+
+	/**
+	 * Caches copies of the game state at nodes once they've had minVisits visits,
+	 * so simulations can start from the deepest cached node on their path
+	 * instead of replaying every move from the root.
+	 * Holds at most 2^numEntriesLog2 states; 0 turns the cache off.
+	 */
+	public void setSnapshotCache(int numEntriesLog2, int minVisits)
+	{
+		assert(minVisits > 0 || numEntriesLog2 == 0);
+		this.snapshotsLog2 = numEntriesLog2;
+		this.snapshotVisits = minVisits;
+		this.snapshots = numEntriesLog2 > 0 ? new FastHash<GameState<?>>(numEntriesLog2, 0.75f, 2) : null;
+	}
+
+	// stops iterate() and iterateMultiThreaded() once System.nanoTime() passes this, 0 for no deadline
+	public void setDeadline(long nanoTime)
+	{
+		this.deadline = nanoTime;
+	}
+
 	public void setRandomSeed(long seed)
 	{
 		this.randomSeed = seed;
@@ -568,20 +1145,24 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 	public void setGoodMoveProbability(int percent)
 	{
 		this.goodMoveProb = percent;
-		this.goodMoves = (percent>0) ? new MoveMaskHash() : null;
+		// one per tree, shared by every playout, so it can be big
+		this.goodMoves = (percent>0) ? new MoveMaskHash(16) : null;
 	}
 	
+	/**
+	 * Turns the tree into a DAG for games that implement HashedPosition:
+	 * a node that starts a turn is shared by every path reaching the same
+	 * position at the same level, so transpositions pool their statistics.
+	 * The state passed to iterate() must have hashing enabled.
+	 * 0 turns it off.
+	 */
 	public void setTranspositionTableSize(int numEntriesLog2)
 	{
-		// TODO: fix how transposition tables work, or remove
-		/*
 		if (numEntriesLog2 > 0)
-		{
-			this.transpositionTable = new TranspositionTable(numEntriesLog2, 8);
-		}
+			this.transpositions = new FastHash<Integer>(numEntriesLog2, 0.75f, 2);
 		else
-			this.transpositionTable = null;
-		*/
+			this.transpositions = null;
+		reset();
 	}
 
 	public Simulator newSimulator(GameState<?> state, int iters)
@@ -595,6 +1176,7 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 	{
 		Simulator sim = newSimulator(state, iters);
 		sim.run();
+		sim.mergeStats();
 	}
 
 	public boolean useMultipleThreads = true;
@@ -604,15 +1186,141 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		Simulator[] sims = new Simulator[ThreadUtils.numThreadsPerPool()];
 		Runnable[] tasks = new Runnable[sims.length];
 		AtomicInteger iters = new AtomicInteger(numIters);
+		// stop at whichever comes first, the timeout or the deadline
+		long stopTime = deadline;
+		if (timeoutSecs > 0)
+		{
+			long timeout = System.nanoTime() + timeoutSecs * 1000000000L;
+			if (stopTime == 0 || timeout - stopTime < 0)
+				stopTime = timeout;
+		}
+		if (parallelism == Parallelism.RootParallel)
+		{
+			iterateRootParallel(state, sims, tasks, iters, stopTime);
+			return;
+		}
 		for (int i = 0; i < sims.length; i++)
 		{
 			sims[i] = newSimulator(state, 1);
-			tasks[i] = new SimulateTask(sims[i], iters);
+			tasks[i] = new SimulateTask(sims[i], iters, stopTime);
 		}
-		ThreadUtils.submitAndWait(tasks);
+		// tasks stop early when the tree is over budget, so we can collapse it between rounds
+		do {
+			if (isOverBudget())
+				collapseTree();
+			ThreadUtils.submitAndWait(tasks);
+		} while (iters.get() > 0 && isOverBudget());
+		for (int i=0; i<sims.length; i++)
+			sims[i].mergeStats();
 		if (debug)
 			for (int i=0; i<sims.length; i++)
-				prdebug(root, "Simulator " + i + " " + sims[i].timeInSelect + " " + sims[i].timeInSimulate + " " + sims[i].timeInBackprop);
+				prdebug(NONE, "Simulator " + i + " " + sims[i].timeInSelect + " " + sims[i].timeInSimulate + " " + sims[i].timeInBackprop);
+	}
+
+	private void iterateRootParallel(GameState<?> state, Simulator[] sims, Runnable[] tasks, AtomicInteger iters, long stopTime)
+			throws ExecutionException, InterruptedException
+	{
+		if (rootWorkers == null || rootWorkers.length != sims.length)
+		{
+			rootWorkers = new MCTS[sims.length];
+			for (int i=0; i<rootWorkers.length; i++)
+				rootWorkers[i] = newRootWorker();
+		}
+		do {
+			long roundEnd = stopTime;
+			if (rootMergeInterval > 0)
+			{
+				long t = System.nanoTime() + rootMergeInterval * 1000000L;
+				if (roundEnd == 0 || t - roundEnd < 0)
+					roundEnd = t;
+			}
+			for (int i=0; i<sims.length; i++)
+			{
+				MCTS worker = rootWorkers[i];
+				worker.initialChoices = initialChoices;
+				sims[i] = worker.newSimulator(state, 1);
+				tasks[i] = worker.new SimulateTask(sims[i], iters, roundEnd);
+			}
+			ThreadUtils.submitAndWait(tasks);
+			for (int i=0; i<sims.length; i++)
+			{
+				MCTS worker = rootWorkers[i];
+				sims[i].mergeStats();
+				stats.add(worker.stats);
+				worker.resetStats();
+				if (worker.isOverBudget())
+					worker.collapseTree();
+			}
+			mergeRootWorkers();
+		} while (iters.get() > 0 && !isPastDeadline(stopTime) && !(root != NONE && isSolved(root)));
+	}
+
+	// a private tree for one RootParallel thread, with the same settings as ours
+	private MCTS newRootWorker()
+	{
+		MCTS worker = new MCTS(this);
+		// nobody else touches it, so go lock-free without virtual loss
+		worker.setParallelism(Parallelism.TreeParallel);
+		worker.setVirtualLoss(0);
+		worker.transpositions = null;
+		if (transpositions != null)
+			worker.setTranspositionTableSize(Integer.numberOfTrailingZeros(transpositions.capacity()));
+		worker.setRandomSeed(masterRandom.nextLong());
+		return worker;
+	}
+
+	/**
+	 * Rebuilds this tree from the sum of the RootParallel threads' trees.
+	 * Only the first turn is merged (down to end of turn or a chance node),
+	 * which is all that getBestPath() needs to choose a move.
+	 */
+	private synchronized void mergeRootWorkers()
+	{
+		this.root = NONE;
+		this.rootLevel = 0;
+		arena.reset();
+		Stats mergeStats = new Stats();
+		for (MCTS worker : rootWorkers)
+		{
+			int r = worker.root;
+			if (r == NONE)
+				continue;
+			if (root == NONE)
+				root = arena.allocate(NONE, -1, 1, worker.arena.allMoves.get(r));
+			mergeNode(root, worker, r, mergeStats);
+		}
+	}
+
+	private void mergeNode(int id, MCTS src, int srcId, Stats mergeStats)
+	{
+		NodeArena a = src.arena;
+		int n = a.visits.get(srcId);
+		arena.visits.addAndGet(id, n);
+		// scores are combined as visit-weighted averages (with IncrementalUpdate, totalScore is already an average)
+		if (n > 0 && a.totalWeight.getDouble(srcId) > 0)
+		{
+			arena.totalScore.addDouble(id, src.getAvgScore(srcId) * n);
+			arena.totalWeight.addDouble(id, n);
+		}
+		arena.setFlag(id, a.flags.get(srcId) & (NodeArena.CHANCE | NodeArena.END_OF_TURN));
+		arena.invalidMoves.orMask(id, a.invalidMoves.get(srcId));
+		arena.solvedMoves.orMask(id, a.solvedMoves.get(srcId));
+		arena.pessimisticBound.set(id, Math.max(arena.pessimisticBound.get(id), a.pessimisticBound.get(srcId)));
+		arena.optimisticBound.set(id, Math.min(arena.optimisticBound.get(id), a.optimisticBound.get(srcId)));
+		if (srcId != src.root && (a.hasFlag(srcId, NodeArena.END_OF_TURN) || a.hasFlag(srcId, NodeArena.CHANCE)))
+			return;
+		int base = a.childBase.get(srcId);
+		if (base == NONE)
+			return;
+		long moves = a.allMoves.get(srcId);
+		for (int i=0; moves != 0; i++)
+		{
+			int index = Long.numberOfTrailingZeros(moves);
+			moves &= moves - 1;
+			int c = a.childSlots.get(base + i);
+			if (c != NONE)
+				mergeNode(createOrGet(id, index, a.factor.get(c), a.allMoves.get(c), mergeStats), src, c, mergeStats);
+		}
 	}
 
 	// TODO: merge w/ MCRAVE
@@ -620,11 +1328,13 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 	{
 		private Simulator sim;
 		private AtomicInteger iters;
+		private long deadline;
 
-		public SimulateTask(Simulator sim, AtomicInteger iters)
+		public SimulateTask(Simulator sim, AtomicInteger iters, long deadline)
 		{
 			this.sim = sim;
 			this.iters = iters;
+			this.deadline = deadline;
 		}
 
 		@Override
@@ -632,11 +1342,17 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		{
 			try
 			{
+				int n = 0;
 				while (iters.decrementAndGet() >= 0)
 				{
 					if (sim.execute() == null)
 						iters.set(-1);
+					else if ((++n & DEADLINE_CHECK_MASK) == 0 && isPastDeadline(deadline))
+						break;
+					else if (isOverBudget())
+						break;
 				}
+				sim.flushBatch();
 			} catch (Throwable e)
 			{
 				e.printStackTrace();
@@ -659,9 +1375,11 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		private float[] probabilities;
 		private int[] playersPerLevel;
 		private long[] allMovesPerLevel;
+		private int[] replayNodes;	// node at each level of the selected path
 		private int replayLevel;
-		private Node lastReplayNode;
+		private int lastReplayNode;
 		private int lastReplayPlayer;
+		private long leafPositionKey;	// position of the new leaf, if it starts a turn and we're finding transpositions
 		private int seekingPlayer;
 		protected int currentLevel;
 		
@@ -669,6 +1387,18 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		private long timeInSimulate;
 		private long timeInBackprop;
 		private boolean running;
+		private Stats stats;	// private in TreeParallel mode, merged by mergeStats()
+
+		// playout results waiting to be applied (see setBackpropBatchSize())
+		private int[][] batchPaths;
+		private int[] batchLengths;
+		private int[] batchVirtualLevels;	// virtual losses to remove, on path[1..n]
+		private double[] batchScores;
+		private double[] batchWeights;
+		private int[] batchGroup;
+		private boolean[] batchDone;
+		private int batchCount;
+		private boolean virtualLossBatched;
 		
 		//
 
@@ -681,7 +1411,29 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			this.probabilities = new float[maxLevel + levelSlop];
 			this.playersPerLevel = new int[maxLevel + levelSlop];
 			this.allMovesPerLevel = new long[maxLevel + levelSlop];
+			this.replayNodes = new int[maxLevel + levelSlop + 1];
 			this.rnd = new RandomXorshift128(masterRandom.nextLong());
+			this.stats = treeParallel ? new Stats() : MCTS.this.stats;
+			if (treeParallel && backpropBatchSize > 1)
+			{
+				int n = backpropBatchSize;
+				this.batchPaths = new int[n][maxLevel + levelSlop + 2];
+				this.batchLengths = new int[n];
+				this.batchVirtualLevels = new int[n];
+				this.batchScores = new double[n];
+				this.batchWeights = new double[n];
+				this.batchGroup = new int[n];
+				this.batchDone = new boolean[n];
+			}
+		}
+
+		void mergeStats()
+		{
+			if (stats != MCTS.this.stats)
+			{
+				MCTS.this.stats.add(stats);
+				stats = new Stats();
+			}
 		}
 
 		public void run()
@@ -692,40 +1444,78 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			{
 				if (execute() == null)
 					break;
+				if ((i & DEADLINE_CHECK_MASK) == DEADLINE_CHECK_MASK && isPastDeadline(deadline))
+					break;
+				if (isOverBudget())
+				{
+					flushBatch();
+					collapseTree();
+				}
 			}
+			flushBatch();
 		}
 		
 		public GameState<?> execute()
 		{
-			if (root != null && root.isSolved())
+			int r = root;
+			if (r != NONE && isSolved(r))
 				return null; // TODO: is this enough? should notify other levels?
 			
-			GameState<?> state = initialState.copy();
-			// disable hash updates, for now
-			if (state instanceof HashedPosition)
-				((HashedPosition) state).enableHashing(false);
-			// lock the main tree and select
+			// lock the main tree and select (unless TreeParallel)
 			long t1 = System.currentTimeMillis();
-			synchronized (MCTS.this)
+			boolean selected;
+			if (treeParallel)
 			{
-				if (!select() && lastReplayNode == null)
-					return null;
+				selected = select();
+			} else {
+				synchronized (MCTS.this)
+				{
+					selected = select();
+				}
 			}
-			// TODO: have copies of intermediate states in strategic places
+			if (!selected && lastReplayNode == NONE)
+				return null;
+			// start from the deepest cached state on the path, if any
+			int startLevel = 0;
+			GameState<?> state = null;
+			if (snapshots != null)
+			{
+				for (startLevel = replayLevel; startLevel > 0; startLevel--)
+				{
+					int node = replayNodes[startLevel];
+					if (arena.hasFlag(node, NodeArena.SNAPSHOT) && (state = snapshots.getEntryAt(node, node)) != null)
+						break;
+				}
+			}
+			state = state != null ? state.copy() : initialState.copy();
+			// disable hash updates, unless we need them to find transpositions
+			if (state instanceof HashedPosition && transpositions == null)
+				((HashedPosition) state).enableHashing(false);
 			long t2 = System.currentTimeMillis();
+			long t3;
 			try
 			{
-				simulate(state);
+				simulate(state, startLevel);
+				// lock the main tree and backprop (unless TreeParallel)
+				t3 = System.currentTimeMillis();
+				if (treeParallel)
+				{
+					backpropagate(state);
+				} else {
+					synchronized (MCTS.this)
+					{
+						backpropagate(state);
+					}
+				}
 			} catch (MoveFailedException e)
 			{
 				// TODO: should assume it's a draw? not always
 				throw new RuntimeException(e);
-			}
-			// lock the main tree and backprop
-			long t3 = System.currentTimeMillis();
-			synchronized (MCTS.this)
+			} finally
 			{
-				backpropagate(state);
+				if (treeParallel && !virtualLossBatched)
+					removeVirtualLoss();
+				virtualLossBatched = false;
 			}
 			long t4 = System.currentTimeMillis();
 			timeInSelect += t2-t1;
@@ -737,68 +1527,201 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		boolean select()
 		{
 			replayLevel = 0;
-			Node node = root;
-			if (node == null)
+			int node = root;
+			replayNodes[0] = node;
+			if (node == NONE)
 			{
+				lastReplayNode = NONE;
 				return true;
 			}
 			if (debug)
 				prdebug(node, "select()");
-			while (node.hasChildren())
+			while (hasChildren(node))
 			{
 				//debug = (node+"").startsWith(":2:2:1:");
-				assert(node.numVisits > 0);
-				if (!node.isComplete())
+				// (a node's first visits may still be in our batch)
+				assert(arena.visits.get(node) > 0 || batchPaths != null);
+				if (!isComplete(node))
 				{
 					if (debug)
 						prdebug(node,
-								"select() node incomplete: " + Long.toHexString(node.allMoves) + " "
-										+ Long.toHexString(node.visitedMoves) + " "
-										+ Long.toHexString(node.invalidMoves));
+								"select() node incomplete: " + Long.toHexString(arena.allMoves.get(node)) + " "
+										+ Long.toHexString(arena.visitedMoves.get(node)) + " "
+										+ Long.toHexString(arena.invalidMoves.get(node)));
 					break;
 				}
 				if (debug)
-					prdebug(node, "select() " + replayLevel + " = " + node.toDesc());
-				Node n2 = node.getPredeterminedNode();
-				Node next = n2 != null ? n2 : node.getBestUnexploredNode();
-				if (next == null && replayLevel == 0)
+					prdebug(node, "select() " + replayLevel + " = " + toDesc(node));
+				int n2 = getPredeterminedChild(node);
+				int next = n2 != NONE ? n2 : getBestChild(node);
+				if (next == NONE && replayLevel == 0)
 				{
 					if (debug)
-						prdebug(null, "select(): all nodes exhausted");
-					lastReplayNode = null;
+						prdebug(NONE, "select(): all nodes exhausted");
+					lastReplayNode = NONE;
 					return false;
 				}
 				// TODO: these fire off in TestMCTSCompetition.testDice and testGoSmall due to race conditions(?)
-				if (next == null || next.isSolved())
+				if (next == NONE || isSolved(next))
 				{
 					if (debug)
-						prdebug(null, "select(): invalid node " + next);
+						prdebug(NONE, "select(): invalid node " + nodeFor(next));
 					lastReplayNode = node; // TODO: want to restart, not exit
 					return false;
 				}
-				assert(next != null);
-				assert(!next.isSolved());
-				assert(!node.isInvalidIndex(next.getMoveIndex()));
+				assert(!isSolved(next));
+				int index = indexOfChild(node, next);
+				assert(!isInvalidIndex(node, index));
 				node = next;
-				allMovesPerLevel[replayLevel] = node.getAllMoves();
-				indices[replayLevel] = node.getMoveIndex();
+				// discourage other threads from following us down this path
+				if (treeParallel)
+					arena.virtualLoss.addAndGet(node, virtualLoss);
+				allMovesPerLevel[replayLevel] = arena.allMoves.get(node);
+				indices[replayLevel] = index;
 				replayLevel++;
+				replayNodes[replayLevel] = node;
 			}
 			lastReplayNode = node;
 			if (debug)
-				prdebug(node, "select() to level " + replayLevel + " = " + node.toDesc());
-			assert(lastReplayNode != null);
+				prdebug(node, "select() to level " + replayLevel + " = " + toDesc(node));
+			assert(lastReplayNode != NONE);
 			return true;
 		}
 
-		void simulate(GameState<?> state) throws MoveFailedException
+		// take back the virtual losses added in select()
+		private void removeVirtualLoss()
+		{
+			for (int i=1; i<=replayLevel; i++)
+			{
+				arena.virtualLoss.addAndGet(replayNodes[i], -virtualLoss);
+			}
+		}
+
+		// score the selected path (and optionally a new leaf below it) from the root down;
+		// transposed nodes have several parents, so this follows the path rather than the parent links
+		private void addScoreToPath(int leaf, double score, double weight)
+		{
+			if (batchPaths != null)
+			{
+				addToBatch(leaf, score, weight);
+				return;
+			}
+			int parent = NONE;
+			for (int i=0; i<=replayLevel; i++)
+			{
+				addScore(parent, replayNodes[i], score, weight);
+				parent = replayNodes[i];
+			}
+			if (leaf != NONE)
+				addScore(parent, leaf, score, weight);
+		}
+
+		private void addToBatch(int leaf, double score, double weight)
+		{
+			int k = batchCount++;
+			int[] path = batchPaths[k];
+			System.arraycopy(replayNodes, 0, path, 0, replayLevel + 1);
+			int len = replayLevel + 1;
+			if (leaf != NONE)
+				path[len++] = leaf;
+			batchLengths[k] = len;
+			batchScores[k] = score;
+			batchWeights[k] = weight;
+			// this playout's virtual losses go with its first entry
+			batchVirtualLevels[k] = virtualLossBatched ? 0 : replayLevel;
+			virtualLossBatched = true;
+			if (batchCount == batchPaths.length)
+				flushBatch();
+		}
+
+		/**
+		 * Applies any buffered playout results to the tree.
+		 * Called at the end of run(); callers of execute() should call it when done.
+		 */
+		public void flushBatch()
+		{
+			if (batchCount == 0)
+				return;
+			// level by level from the root, so parents are counted before their children;
+			// entries through the same node (from the same parent) are applied together
+			for (int level=0; ; level++)
+			{
+				Arrays.fill(batchDone, 0, batchCount, false);
+				boolean any = false;
+				for (int j=0; j<batchCount; j++)
+				{
+					if (batchLengths[j] <= level || batchDone[j])
+						continue;
+					any = true;
+					int node = batchPaths[j][level];
+					int parent = level > 0 ? batchPaths[j][level-1] : NONE;
+					int m = 0;
+					for (int k=j; k<batchCount; k++)
+					{
+						if (batchLengths[k] > level && !batchDone[k] && batchPaths[k][level] == node
+								&& (level == 0 || batchPaths[k][level-1] == parent))
+						{
+							batchDone[k] = true;
+							batchGroup[m++] = k;
+						}
+					}
+					addBatchScores(parent, node, m);
+				}
+				if (!any)
+					break;
+			}
+			for (int j=0; j<batchCount; j++)
+			{
+				for (int i=1; i<=batchVirtualLevels[j]; i++)
+					arena.virtualLoss.addAndGet(batchPaths[j][i], -virtualLoss);
+			}
+			batchCount = 0;
+		}
+
+		// same as m calls to addScore(parent, node, ...) for the entries in batchGroup
+		private void addBatchScores(int parent, int node, int m)
+		{
+			if (hasOption(Option.IncrementalUpdate) && parent != NONE)
+			{
+				// the parent has already counted these visits
+				int parentVisits = arena.visits.get(parent) - m;
+				long oldBits, newBits;
+				do {
+					oldBits = arena.totalScore.get(node);
+					double totalScore = Double.longBitsToDouble(oldBits);
+					for (int g=0; g<m; g++)
+					{
+						int e = batchGroup[g];
+						totalScore += (batchScores[e] - totalScore) * batchWeights[e] / Math.max(1, parentVisits + g + 1);
+					}
+					newBits = Double.doubleToRawLongBits(totalScore);
+				} while (!arena.totalScore.compareAndSet(node, oldBits, newBits));
+				arena.totalWeight.setDouble(node, 1);
+			} else {
+				double score = 0;
+				double weight = 0;
+				for (int g=0; g<m; g++)
+				{
+					int e = batchGroup[g];
+					score += batchScores[e] * batchWeights[e];
+					weight += batchWeights[e];
+				}
+				arena.totalScore.addDouble(node, score);
+				arena.totalWeight.addDouble(node, weight);
+			}
+			arena.visits.addAndGet(node, m);
+		}
+
+		// state is the initial state, or a snapshot of the node at startLevel on the selected path
+		void simulate(GameState<?> state, int startLevel) throws MoveFailedException
 		{
 			if (debug)
-				prdebug(lastReplayNode, "simulate()");
-			this.seekingPlayer = state.getCurrentPlayer();
+				prdebug(lastReplayNode, "simulate() from " + startLevel);
+			this.seekingPlayer = initialState.getCurrentPlayer();
 			this.lastReplayPlayer = -1;
-			this.currentLevel = 0;
-			//HashedPosition hashable = transpositionTable != null && (state instanceof HashedPosition) ? (HashedPosition)state : null;
+			this.leafPositionKey = 0;
+			this.currentLevel = startLevel;
+			HashedPosition hashable = transpositions != null && (state instanceof HashedPosition) ? (HashedPosition)state : null;
 			while (!state.isGameOver() && currentLevel < maxLevel)
 			{
 				int turnPlayer = state.getCurrentPlayer();
@@ -836,6 +1759,17 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 				{
 					throw new MoveFailedException("No choices made in playTurn()");
 				}
+				// still in the tree at the start of a turn? maybe cache this state
+				if (snapshots != null && currentLevel <= replayLevel)
+					saveSnapshot(state);
+				// left the tree? we only need the hash for the new leaf, if it starts a turn
+				if (hashable != null && currentLevel > replayLevel)
+				{
+					if (currentLevel == replayLevel + 1)
+						leafPositionKey = positionKey(hashable, state);
+					hashable.enableHashing(false);
+					hashable = null;
+				}
 				if (currentLevel >= replayLevel)
 				{
 					if (earlyExit)
@@ -848,9 +1782,9 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 				}
 			}
 			// make sure that if the tree runs out that it ends on a turn
-			if (state.isGameOver() && replayLevel == currentLevel && lastReplayNode != null)
+			if (state.isGameOver() && replayLevel == currentLevel && lastReplayNode != NONE)
 			{
-				assert(lastReplayNode.isEndOfTurn());
+				assert(arena.hasFlag(lastReplayNode, NodeArena.END_OF_TURN));
 			}
 			playersPerLevel[currentLevel] = -1;
 			allMovesPerLevel[currentLevel] = 0;
@@ -858,29 +1792,23 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 				prdebug(lastReplayNode, "simulate() from " + replayLevel + " to " + currentLevel + " score = " + state.getModifiedScore(seekingPlayer));
 		}
 
-		private void recordTranspositions(HashedPosition hashable, int turnPlayer, int level)
+		private long positionKey(HashedPosition hashable, GameState<?> state)
 		{
-			long hash = hashable.hashFor(seekingPlayer);
-			Entry entry = transpositionTable.getEntryAt(hash, turnPlayer);
-			if (entry != null && entry.line != lastReplayNode && entry.getLevel() == level)
-			{
-				Node trans = (Node) entry.line;
-				Set<Node> set = trans.transpositions;
-				if (set == null)
-					set = lastReplayNode.transpositions;
-				if (set == null)
-					set = new HashSet<Node>();
-				trans.transpositions = lastReplayNode.transpositions = set;
-				set.add(trans);
-				set.add(lastReplayNode);
-				if (debug)
-					prdebug(lastReplayNode, "simulate() transposition found: " +  hash + " " + entry + " " + set);
-			}
-			else if (entry == null)
+			// only share nodes at the same level, between the same players
+			long key = hashable.hashFor(seekingPlayer)
+					^ (currentLevel + rootLevel) * 0x9e3779b97f4a7c15L
+					^ ((long)lastReplayPlayer << 48)
+					^ ((long)state.getCurrentPlayer() << 56);
+			return key != 0 ? key : 1;
+		}
+
+		private void saveSnapshot(GameState<?> state)
+		{
+			int node = replayNodes[currentLevel];
+			if (arena.visits.get(node) >= snapshotVisits && !arena.hasFlag(node, NodeArena.SNAPSHOT))
 			{
-				entry = transpositionTable.newEntry(hash, turnPlayer, level, 0, EntryType.EXACT);
-				if (entry != null)
-					entry.line = lastReplayNode;
+				arena.setFlag(node, NodeArena.SNAPSHOT);
+				snapshots.insertEntry(node, node, state.copy());
 			}
 		}
 
@@ -892,24 +1820,23 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		boolean backpropagate(GameState<?> state)
 		{
 			// create root and set mask for root level, if need be
-			if (root == null)
+			if (root == NONE)
 			{
-				long allMoves = allMovesPerLevel[0];
-				root = new Node(null, -1, 1, allMoves);
-				if (allMoves == 0)
+				if (treeParallel)
 				{
-					root.setSolved(getFinalScore(state));
-				}
-				stats.totalLeafCount++;
-				// TODO: set chance?
-				if (debug)
-					prdebug(root, "backpropagate(): Created new root " + root.toDesc());
+					synchronized (MCTS.this)
+					{
+						if (root == NONE)
+							createRoot(state);
+					}
+				} else
+					createRoot(state);
 				// exit, we'll take another pass next time
 				return false;
 			}
 			// if we didn't yet have a root last time, just exit
-			Node previousLeaf = lastReplayNode;
-			if (previousLeaf == null)
+			int previousLeaf = lastReplayNode;
+			if (previousLeaf == NONE)
 				return false;
 			
 			int score = getFinalScore(state);
@@ -918,7 +1845,7 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			{
 				if (debug)
 					prdebug(previousLeaf, "backpropagate(): Reached level " + replayLevel + "; score = " + score);
-				previousLeaf.setSolved(score);
+				setSolved(previousLeaf, score);
 				return false;
 			}
 			assert (replayLevel < currentLevel);
@@ -937,7 +1864,7 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			{
 				updateGoodMoves(won);
 			}
-			int factor = (previousLeaf != null && previousLeaf.isChanceNode()) ? 0 : (lastReplayPlayer == seekingPlayer) ? 1 : -1;
+			int factor = arena.hasFlag(previousLeaf, NodeArena.CHANCE) ? 0 : (lastReplayPlayer == seekingPlayer) ? 1 : -1;
 			// earlyWinBonus = bonus if search ended early
 			double weight = Math.round(1 + earlyWinBonus * (maxLevel - currentLevel + 0.0) / maxLevel);
 			// take chance node probability into account
@@ -956,44 +1883,72 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			if (debug)
 				prdebug(previousLeaf, "Creating " + moveIndex + " next 0x" + Long.toHexString(nextMask) + " level " + replayLevel);
 			// save this leaf's previous scores (for OnlyRetainLeafScores)
-			double prevLeafScore = previousLeaf.totalScore;
-			double prevLeafWeight = previousLeaf.totalWeight;
-			boolean hadChildren = previousLeaf.hasChildren();
+			double prevLeafScore = arena.totalScore.getDouble(previousLeaf);
+			double prevLeafWeight = arena.totalWeight.getDouble(previousLeaf);
+			boolean hadChildren = hasChildren(previousLeaf);
 			// create leaf if neccessary, add score
-			Node node = previousLeaf.createOrGet(moveIndex, factor, nextMask);
-			node.addScore(score, weight);
+			int node = createOrGet(previousLeaf, moveIndex, factor, nextMask, leafPositionKey, stats);
+			addScoreToPath(node, score, weight);
 			// kill scores of previous leaf to maintain accuracy (TODO: might not be accurate)
 			if (hasOption(Option.OnlyRetainLeafScores)
 					&& !hasOption(Option.IncrementalUpdate)
 					&& !hadChildren
 					&& prevLeafWeight > 0)
 			{
-				previousLeaf.addScore(prevLeafScore/prevLeafWeight, -prevLeafWeight);
+				addScoreToPath(NONE, prevLeafScore/prevLeafWeight, -prevLeafWeight);
 				if (debug)
-					prdebug(previousLeaf, "Removing score " + prevLeafScore/prevLeafWeight + ", now " + previousLeaf.getAvgScore());
+					prdebug(previousLeaf, "Removing score " + prevLeafScore/prevLeafWeight + ", now " + getAvgScore(previousLeaf));
 			}
 			// set end of turn flag
 			{
 				int p1 = playersPerLevel[replayLevel];
 				int p2 = playersPerLevel[replayLevel+1];
 				if (p1 != p2)
-					node.setIsEndOfTurn();
-				if (debug && node.isEndOfTurn())
+					arena.setFlag(node, NodeArena.END_OF_TURN);
+				if (debug && arena.hasFlag(node, NodeArena.END_OF_TURN))
 					prdebug(node, "backpropagate(): End of turn, P" + p1 + " -> P" + p2);
 			}
  			// make invalid if all moves == 0
 			if (nextMask == 0)
 			{
 				// is it a proven win or loss?
-				node.setSolved(score);
+				setSolved(node, score);
 				if (debug)
 					prdebug(node, "backpropagate(): Solved node, game over " + state.isGameOver());
 			}
 			if (debug)
-				prdebug(node, "backpropagate(): Updated " + node.toDesc());
+				prdebug(node, "backpropagate(): Updated " + toDesc(node));
 			return true;
 		}
 
+		private void createRoot(GameState<?> state)
+		{
+			long allMoves = allMovesPerLevel[0];
+			int newroot = arena.allocate(NONE, -1, 1, allMoves);
+			if (allMoves == 0)
+			{
+				MCTS.this.setSolved(newroot, getFinalScore(state));
+			}
+			stats.totalLeafCount++;
+			// TODO: set chance?
+			if (debug)
+				prdebug(NONE, "backpropagate(): Created new root " + toDesc(newroot));
+			root = newroot;
+		}
+
+		// solved bounds propagate up the tree, which is rare enough to do under the monitor
+		private void setSolved(int node, int score)
+		{
+			if (treeParallel)
+			{
+				synchronized (MCTS.this)
+				{
+					MCTS.this.setSolved(node, score);
+				}
+			} else
+				MCTS.this.setSolved(node, score);
+		}
+
 		private void updateGoodMoves(boolean win)
 		{
 			for (int i=replayLevel; i<currentLevel; i++)
@@ -1071,7 +2026,7 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 					// descended a tree where all nodes marked invalid/solved
 					// this happens if we have no valid moves and a low maxlevel (testSimpleTwoLevelOneValidMove)
 					// and could also happen if we have multiple threads involved (testDice)
-					lastReplayNode.getMoveAtDepth(currentLevel-1).setInvalidIndex(index);
+					setInvalidIndex(replayNodes[currentLevel-1], index);
 					//throw new MoveFailedException("Result " + result + " at " + lastReplayNode + " level " + (currentLevel-1));
 				}
 				return result;
@@ -1111,21 +2066,22 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 					}
 				}
 				// are we at a leaf of the tree?
-				Node replayNode = level == replayLevel ? lastReplayNode : null;
-				if (replayNode != null)
+				int replayNode = level == replayLevel ? lastReplayNode : NONE;
+				if (replayNode != NONE)
 				{
 					// this node may have returned NoMoves or made no progress in simulate()
-					if (replayNode.getAllMoves() == 0)
+					long replayMoves = arena.allMoves.get(replayNode);
+					if (replayMoves == 0)
 						return MoveResult.NoMoves;
 					
-					//if (!(replayNode.getAllMoves() == allMovesPerLevel[level])) prdebug(replayNode, replayNode.getAllMoves()+" "+allMovesPerLevel[level]+" " + replayNode.isSolved);
-					assert(replayNode.getAllMoves() == allMovesPerLevel[level]);
+					assert(replayMoves == allMovesPerLevel[level]);
 					// set whether it's a chance node
 					if (chance)
-						replayNode.setIsChanceNode();
+						arena.setFlag(replayNode, NodeArena.CHANCE);
 					// if some indices are invalid, don't bother hitting them again
-					mask &= ~replayNode.invalidMoves;
-					extra &= ~replayNode.invalidMoves;
+					long invalidMoves = arena.invalidMoves.get(replayNode);
+					mask &= ~invalidMoves;
+					extra &= ~invalidMoves;
 					if (mask == 0)
 						mask = extra;
 				}
@@ -1159,9 +2115,9 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 					// if we get an invalid result on the leaf node,
 					// mark this index as invalid within that node
 					// TODO: race conditions?
-					if (replayNode != null)
+					if (replayNode != NONE)
 					{
-						replayNode.setInvalidIndex(index);
+						setInvalidIndex(replayNode, index);
 					}
 					// don't visit this choice again
 					mask &= ~(1L<<bit);
@@ -1218,22 +2174,34 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 
 	public Node getRoot()
 	{
-		return root;
+		return nodeFor(root);
 	}
 
 	public Node getBestPath()
 	{
-		Node n = root;
-		while (n.hasChildren())
+		int n = root;
+		if (n == NONE)
+			return null;
+		// build the line from the children we walk through, since a
+		// transposed child's parent link may lead back along another path
+		Node node = nodeFor(n);
+		while (hasChildren(n))
 		{
-			Node n2 = n.getPredeterminedNode();
-			if (n2 == null)
-				n2 = n.getMostRobustNode();
-			if (n2 == null)
-				return n;
+			int n2 = getPredeterminedChild(n);
+			if (n2 == NONE)
+				n2 = getMostRobustChild(n);
+			if (n2 == NONE)
+				break;
+			node = node.child(n2);
 			n = n2;
 		}
-		return n;
+		return node;
+	}
+
+	// number of nodes allocated in the current tree
+	public int getNodeCount()
+	{
+		return arena.size();
 	}
 	
 	public String toString()
@@ -1244,15 +2212,17 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 				//+ MiscUtils.format("%3.1f", totalLosses * 100.0 / totalCompleted) + "% losses, "
 				+ (stats.totalMoves/(stats.totalPlays+1)) + " moves/play ("
 				+ MiscUtils.format("%3.1f", stats.totalGoodMoves * 100.0 / stats.totalMoves) + "% good), "
-				+ stats.totalNodeCount + " nodes.";
+				+ stats.totalNodeCount + " nodes"
+				+ (nodeBudget > 0 ? ", " + stats.totalCollapsed + " collapsed" : "")
+				+ (transpositions != null ? ", " + stats.totalTranspositions + " transpositions." : ".");
 	}
 
-	private void prdebug(Node node, String string)
+	private void prdebug(int node, String string)
 	{
-		if (node != null && node != root)
+		if (node != NONE && node != root)
 		{
 			System.out.print("[");
-			System.out.print(node);
+			System.out.print(nodeFor(node));
 			System.out.print("] ");
 			//System.out.print(node.toDesc());
 			//System.out.print(" ");
@@ -1276,7 +2246,7 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		int n = 0;
 		for (int x=0; x<width; x++)
 		{
-			char ch = iterateTree(level, x*1.0f/width, root);
+			char ch = iterateTree(level, x*1.0f/width, getRoot());
 			if (ch != ' ')
 				n++;
 			System.out.print(ch);
@@ -1343,16 +2313,18 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			this.initialChoices = Arrays.copyOf(choices, len);
 	}
 
-	public TranspositionTable getTranspositionTable()
+	public FastHash<Integer> getTranspositionTable()
 	{
-		return transpositionTable;
+		return transpositions;
 	}
 
 	//
 	
 	public AIDecider newSolver(GameState<?> initialState)
 	{
-		return new Solver(initialState, getNumIters());
+		Solver solver = new Solver(initialState, getNumIters());
+		solver.setTimeLimit(getTimeLimit());
+		return solver;
 	}
 	
 	public class Solver extends AIDecider
@@ -1370,9 +2342,17 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 		public Line<?> solve() throws MoveFailedException, InterruptedException, ExecutionException
 		{
 			// start from initial state, but use indices we've gathered so far in this turn
-			mcts = new MCTS(mcts);
+			// (with ReuseTree, keep searching the tree the caller has advance()d to this position)
+			if (!hasOption(Option.ReuseTree))
+				mcts = new MCTS(mcts);
 			mcts.setRandomSeed(new Random().nextLong()); // TODO: seed?
 			mcts.setInitialChoices(turnActions, turnIndex); // TODO: will always visit these?
+			// with a time limit, search until the deadline (or iters, if set);
+			// if the move isn't complete by then, later passes just finish it off
+			long deadline = getDeadline();
+			int n = (deadline != 0 && iters <= 0) ? Integer.MAX_VALUE : iters;
+			mcts.setDeadline(deadline);
+			int startPlays = mcts.stats.totalPlays;
 			//mcts.setDebug(true);
 
 			//for (int i=0; i<turnIndex; i++)
@@ -1383,9 +2363,9 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 			do {
 				int count1 = mcts.stats.totalPlays;
 				if (useMultipleThreads)
-					mcts.iterateMultiThreaded(initialState, iters, 300);
+					mcts.iterateMultiThreaded(initialState, n, 300);
 				else
-					mcts.iterate(initialState, iters);
+					mcts.iterate(initialState, n);
 				//mcts.iterate(initialState, iters);
 				int count2 = mcts.stats.totalPlays;
 				
@@ -1404,6 +2384,8 @@ public class MCTS extends SearchAlgorithmBase implements AISolver
 				
 			} while (bestPath == null || !bestPath.isCompletePath());
 			//mcts.getRoot().dumpToLevel(2);
+			mcts.setDeadline(0);
+			lastSolveIterations = mcts.stats.totalPlays - startPlays;
 			return bestPath;
 		}
 
@@ -1,6 +1,8 @@
 package com.puzzlingplans.ai.search;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.puzzlingplans.ai.Choice;
 import com.puzzlingplans.ai.Decider;
@@ -13,18 +15,26 @@ import com.puzzlingplans.ai.MoveResult;
 import com.puzzlingplans.ai.search.TranspositionTable.Entry;
 import com.puzzlingplans.ai.search.TranspositionTable.EntryType;
 import com.puzzlingplans.ai.util.MiscUtils;
+import com.puzzlingplans.ai.util.ThreadUtils;
 
 public class Minimax implements Decider, AISolver
 {
 	private GameState<?> initialState;
 	private int maxLevel;
 	private int maxNumLeaves;
+	private long timeLimit;
+	private long deadline;
+	private boolean outOfTime;
 	private boolean cutoff;
 	private MoveMaskHash cutoffHintHash;
 	private int depthPenalty;
 	private boolean failSoft;
 	private TranspositionTable transpositionTable;
+	private PackedTranspositionTable packedTable;
 	private boolean disallowChanceNodes;
+	private int numThreads = 1;
+	private boolean useUndo = true;
+	private volatile boolean stopped;
 	
 	private boolean debug;
 	private boolean printLevelStats;
@@ -36,8 +46,11 @@ public class Minimax implements Decider, AISolver
 	private Node currentNode;
 	private int[] initialChoices;
 	private int initialChoicesLength;
+	private int[] pvHint;
 	
 	private int numLeavesVisited;
+	private int numHelperFailures;
+	private Throwable lastHelperFailure;
 	private int numGamesCompleted;
 	private int numCutoffs;
 	private int numEarlyCutoffs;
@@ -45,6 +58,8 @@ public class Minimax implements Decider, AISolver
 	private int numTransTableBounds;
 	private int lastRootScore;
 	
+	private static final int DEADLINE_CHECK_MASK = 255;
+
 	static final int RESET = 0;
 	static final int END  = -1;
 	static final int NEXT = -2;
@@ -55,10 +70,16 @@ public class Minimax implements Decider, AISolver
 	{
 		long cutoffMask;
 		Node pv;
+		boolean onPVHint;
+		long ttMoveMask;
 		
 		public Node(Node parent, int index)
 		{
 			super(parent, index);
+			if (parent == null)
+				onPVHint = pvHint != null;
+			else
+				onPVHint = parent.onPVHint && parent.getLevel() < pvHint.length && pvHint[parent.getLevel()] == index;
 		}
 
 		@Override
@@ -80,10 +101,23 @@ public class Minimax implements Decider, AISolver
 				if (debug)
 					prdebug(this, "initial choice " + getLevel() + ": 0x" + nodeMask);
 			}
-			// move ordering hint available?
-			else if (cutoffHintHash != null)
+			// on the line we were asked to search first?
+			else if (onPVHint && getLevel() < pvHint.length && (nodeMask & (1L << pvHint[getLevel()])) != 0)
+			{
+				long pvMask = 1L << pvHint[getLevel()];
+				if (debug)
+					prdebug(this, "pv hint " + pvHint[getLevel()]);
+				extraMask = nodeMask & ~pvMask;
+				if (extraMask != 0)
+					nodeMask = pvMask;
+			}
+			// move ordering hint available? (cutoff moves, plus the best move from the transposition table)
+			else if (cutoffHintHash != null || ttMoveMask != 0)
 			{
-				long cutoffMask = cutoffHintHash.getForMask(nodeMask);
+				long cutoffMask = ttMoveMask;
+				if (cutoffHintHash != null)
+					cutoffMask |= cutoffHintHash.getForMask(nodeMask);
+				cutoffMask &= nodeMask;
 				if ((cutoffMask & nodeMask) != 0 && nodeMask != cutoffMask)
 				{
 					if (debug)
@@ -131,8 +165,12 @@ public class Minimax implements Decider, AISolver
 		this.depthPenalty = prev.depthPenalty;
 		this.failSoft = prev.failSoft;
 		this.transpositionTable = prev.transpositionTable;
+		this.packedTable = prev.packedTable;
 		this.printLevelStats = prev.printLevelStats;
 		this.printStatsLevel = prev.printStatsLevel;
+		this.timeLimit = prev.timeLimit;
+		this.numThreads = prev.numThreads;
+		this.useUndo = prev.useUndo;
 		reset();
 	}
 
@@ -146,7 +184,14 @@ public class Minimax implements Decider, AISolver
 	public void setPruning(boolean b)
 	{
 		this.cutoff = b;
-		this.cutoffHintHash = b ? new MoveMaskHash() : null; // TODO: setter, share hash between instances
+		this.cutoffHintHash = b ? new MoveMaskHash() : null; // TODO: share hash between instances
+	}
+
+	// the default cutoff hint table is small, deep searches of games with many move masks may want more
+	public void setCutoffHintHashSize(int numEntriesLog2)
+	{
+		if (cutoffHintHash != null)
+			this.cutoffHintHash = new MoveMaskHash(numEntriesLog2);
 	}
 	
 	public void setFailSoft(boolean b)
@@ -176,6 +221,38 @@ public class Minimax implements Decider, AISolver
 		reset();
 	}
 
+	// milliseconds per move for new solvers, which then deepen iteratively until they run out of time
+	public void setTimeLimit(long millis)
+	{
+		this.timeLimit = millis;
+	}
+
+	// abandon solve() once System.nanoTime() passes this, 0 for no deadline
+	public void setDeadline(long nanoTime)
+	{
+		this.deadline = nanoTime;
+	}
+
+	// true if the last solve() was abandoned at the deadline
+	public boolean isOutOfTime()
+	{
+		return outOfTime;
+	}
+
+	// play moves in place and take them back if the game supports it, instead of copying the state
+	public void setUseUndo(boolean b)
+	{
+		this.useUndo = b;
+	}
+
+	// Lazy SMP: with n > 1, solve() runs n-1 helper searches on the thread pool
+	// that only share the transposition table and cutoff hints with this one.
+	// A helper that throws is counted in numHelperFailures(), our result stands.
+	public void setNumThreads(int n)
+	{
+		this.numThreads = n;
+	}
+
 	public void setDebug(boolean b)
 	{
 		this.debug = b;
@@ -201,6 +278,18 @@ public class Minimax implements Decider, AISolver
 			if (initialState instanceof HashedPosition)
 				((HashedPosition)initialState).enableHashing(false);
 		}
+		this.packedTable = null;
+	}
+
+	// use a PackedTranspositionTable instead, which also remembers the best move of each position
+	public void setPackedTranspositionTableSize(int numEntriesLog2)
+	{
+		setTranspositionTableSize(0);
+		if (numEntriesLog2 > 0)
+		{
+			((HashedPosition)initialState).enableHashing(true);
+			this.packedTable = new PackedTranspositionTable(numEntriesLog2);
+		}
 	}
 
 	public Line<Node> getPrincipalVariation()
@@ -208,6 +297,12 @@ public class Minimax implements Decider, AISolver
 		return rootNode.pv;
 	}
 
+	// the copy of the state that solve() searches from
+	public GameState<?> getInitialState()
+	{
+		return initialState;
+	}
+
 	public Line<?> getBestMove()
 	{
 		if (rootNode.pv == null)
@@ -226,6 +321,17 @@ public class Minimax implements Decider, AISolver
 		return numGamesCompleted;
 	}
 
+	// helper threads whose search threw, see setNumThreads()
+	public int numHelperFailures()
+	{
+		return numHelperFailures;
+	}
+
+	public Throwable getLastHelperFailure()
+	{
+		return lastHelperFailure;
+	}
+
 	public String toString()
 	{
 		return numLeavesVisited + " leaves, "
@@ -241,6 +347,15 @@ public class Minimax implements Decider, AISolver
 		return solveFromPlayer(initialState.getCurrentPlayer());
 	}
 
+	// Starts a new generation in the packed transposition table, so entries
+	// from earlier ones are the first to be replaced. Call once per move,
+	// not for each depth or re-search (IterativeDeepening and Solver do this).
+	public void newSearch()
+	{
+		if (packedTable != null)
+			packedTable.newSearch();
+	}
+
 	public int solveFromPlayer(int seekingPlayer)
 	{
 		return solve(seekingPlayer, GameState.SCORE_MIN, GameState.SCORE_MAX);
@@ -256,16 +371,90 @@ public class Minimax implements Decider, AISolver
 		this.seekingPlayer = seekingPlayer;
 		rootNode = new Node(null, -1);
 		currentNode = null;
+		outOfTime = false;
+		stopped = false;
+		Minimax[] helpers = null;
+		Future<?>[] futures = null;
+		if (numThreads > 1)
+		{
+			helpers = new Minimax[numThreads-1];
+			futures = new Future[helpers.length];
+			for (int i=0; i<helpers.length; i++)
+			{
+				helpers[i] = newHelper(i, seekingPlayer, alpha, beta);
+				futures[i] = ThreadUtils.submit(helpers[i].helperTask(seekingPlayer, alpha, beta));
+			}
+		}
 		try
 		{
 			lastRootScore = minimax(initialState, rootNode, alpha, beta);
 			return lastRootScore;
+		} catch (SearchTimeoutException e)
+		{
+			// the principal variation so far is only partly searched
+			outOfTime = true;
+			return lastRootScore;
 		} catch (MoveFailedException e)
 		{
 			throw new RuntimeException(e);
 		} catch (CloneNotSupportedException e)
 		{
 			throw new RuntimeException(e);
+		} finally
+		{
+			if (helpers != null)
+				stopHelpers(helpers, futures);
+		}
+	}
+
+	private Minimax newHelper(int i, int seekingPlayer, int alpha, int beta)
+	{
+		Minimax helper = new Minimax(initialState, this);
+		helper.numThreads = 1;
+		helper.disallowChanceNodes = disallowChanceNodes;
+		helper.deadline = deadline;
+		helper.initialChoices = initialChoices;
+		helper.initialChoicesLength = initialChoicesLength;
+		helper.pvHint = pvHint;
+		// stagger depths so the helpers don't all walk the same tree in lockstep
+		helper.maxLevel = maxLevel + (i & 1);
+		return helper;
+	}
+
+	private Runnable helperTask(final int seekingPlayer, final int alpha, final int beta)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// nothing to report, the search just fills in the shared tables
+				solve(seekingPlayer, alpha, beta);
+			}
+		};
+	}
+
+	private void stopHelpers(Minimax[] helpers, Future<?>[] futures)
+	{
+		for (Minimax helper : helpers)
+			helper.stopped = true;
+		for (int i=0; i<futures.length; i++)
+		{
+			try
+			{
+				if (!futures[i].cancel(false))
+					futures[i].get();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e)
+			{
+				// a helper may go deeper than we did and fail where we didn't,
+				// but it only fills in the shared tables, so our result stands
+				numHelperFailures++;
+				lastHelperFailure = e.getCause();
+			}
+			numLeavesVisited += helpers[i].numLeavesVisited;
 		}
 	}
 	
@@ -287,33 +476,61 @@ public class Minimax implements Decider, AISolver
 		this.currentNode = node;
 		long hash = 0;
 		long ttkey = 0;
-		if (transpositionTable != null && (max||v4))
+		if ((transpositionTable != null || packedTable != null) && (max||v4))
 		{
 			hash = ((HashedPosition)oldstate).hashFor(seekingPlayer);
 			ttkey = v6 ? hash+player : hash;
-			Entry entry = transpositionTable.getEntryAt(hash, ttkey);
+			boolean found = false;
+			int entryLevel = 0;
+			int entryValue = 0;
+			EntryType type = null;
+			if (packedTable != null)
+			{
+				long data = packedTable.probe(hash, ttkey);
+				if (data != 0)
+				{
+					found = true;
+					entryLevel = PackedTranspositionTable.getLevel(data);
+					entryValue = PackedTranspositionTable.getValue(data);
+					type = PackedTranspositionTable.getType(data);
+					int move = PackedTranspositionTable.getBestMove(data);
+					if (move >= 0)
+						node.ttMoveMask = 1L << move;
+					if (debug)
+						prdebug(node, "Looked up " + PackedTranspositionTable.toString(data));
+				}
+			} else {
+				Entry entry = transpositionTable.getEntryAt(hash, ttkey);
+				if (entry != null)
+				{
+					found = true;
+					entryLevel = entry.getLevel();
+					entryValue = entry.getValue();
+					type = entry.getType();
+					if (debug)
+						prdebug(node, "Looked up " + entry);
+				}
+			}
 			// TODO: chance node?
 			// make sure level > 0 because we want to return at least one move as principal variation
 			// TODO: store PV with trans table?
-			if (entry != null && entry.getLevel() >= maxLevel - node.getLevel() && level > 0)
+			if (found && entryLevel >= maxLevel - node.getLevel() && level > 0)
 			{
-				if (debug)
-					prdebug(node, "Looked up " + entry);
-				switch (entry.getType())
+				switch (type)
 				{
 					case EXACT:
 						node.complete();
 						node.markForCutoff(); // TODO: correct?
 						numTransTableExact++;
-						return entry.getValue();
+						return entryValue;
 					case LOWER:
 						if (max || v0)
-							alpha = Math.max(alpha, entry.getValue());
+							alpha = Math.max(alpha, entryValue);
 						numTransTableBounds++;
 						break;
 					case UPPER:
 						if (max || v1)
-							beta = Math.min(beta, entry.getValue());
+							beta = Math.min(beta, entryValue);
 						numTransTableBounds++;
 						break;
 				}
@@ -323,7 +540,7 @@ public class Minimax implements Decider, AISolver
 						prdebug(node, "tt pruned " + beta + " <= " + alpha);
 					node.complete();
 					node.markForCutoff();
-					return entry.getValue(); // TODO? max ? alpha : beta;
+					return entryValue; // TODO? max ? alpha : beta;
 				}
 			}
 		}
@@ -333,119 +550,139 @@ public class Minimax implements Decider, AISolver
 		if (debug)
 			prdebug(node, "start " + (max?"max":"min"));
 		
+		final boolean undo = useUndo && oldstate.supportsUndo();
 		int best = max ? GameState.SCORE_MIN : GameState.SCORE_MAX;
+		int bestMove = -1;
 		EntryType entryType = v2||max ? EntryType.UPPER : EntryType.LOWER;
 		if (level < maxLevel && !oldstate.isGameOver())
 		{
 			while (node.hasNext())
 			{
-				// play a turn with new cloned state
-				GameState<?> newstate = oldstate.copy();
-				this.currentNode = node;
-				if (debug)
-					prdebug(node, "play turn");
-
-				MoveResult turnResult = newstate.playTurn(this);
-				
-				// TODO: child may not be direct child
-				Node child = currentNode;
-				if (debug)
-					prdebug(child, "turn result " + turnResult);
-				assert(child != null);
-				// if move was canceled, we ran out of moves
-				if (turnResult == MoveResult.Canceled)
-					break;
-
-				child.setIsEndOfTurn();
-				// if we didn't advance, assume the game ended
-				if (child == node)
+				// play a turn with new cloned state, or on this one if we can take it back
+				GameState<?> newstate;
+				if (undo)
 				{
-					assert(newstate.isGameOver());
-					return leafNode(node, newstate);
-				}
-				assert(turnResult == MoveResult.Ok);
-				// TODO: chance nodes mixed with non-chance-nodes in same turn do not work
-				//boolean chance = node.isChanceNode(); // isChanceNode is not valid until 1st turn
-				// just check to see if any of the nodes in this turn are chance nodes
-				boolean chance = false;
-				Node n = child;
-				while (n != null) {
-					if (n.isChanceNode())
-						chance = true;
-					if (n == node)
-						break;
-					n = n.getParent();
+					oldstate.pushUndo();
+					newstate = oldstate;
 				}
-				if (chance)
+				else
+					newstate = oldstate.copy();
+				try
 				{
-					if (disallowChanceNodes)
-						throw new SearchOverflowException("Chance node not allowed");
+					this.currentNode = node;
+					if (debug)
+						prdebug(node, "play turn");
+
+					MoveResult turnResult = newstate.playTurn(this);
 					
-					alpha = GameState.SCORE_MIN;
-					beta = GameState.SCORE_MAX;
-					// TODO: add probabilities
-				}
-				
-				// recurse
-				int val = minimax(newstate, child, alpha, beta);
-
-				currentNode = child;
-				
-				nchildren++;
-				
-				if (node.isChanceNode())
-				{
-					// TODO: weight by probability?
-					// TODO: expectimax star1, star2
-					total += val;
-					node.pv = child.pv != null ? child.pv : child; // TODO?
-				} else {
-					// compute new alpha and beta
-					if (max)
+					// TODO: child may not be direct child
+					Node child = currentNode;
+					if (debug)
+						prdebug(child, "turn result " + turnResult);
+					assert(child != null);
+					// if move was canceled, we ran out of moves
+					if (turnResult == MoveResult.Canceled)
+						break;
+
+					child.setIsEndOfTurn();
+					// if we didn't advance, assume the game ended
+					if (child == node)
 					{
-						if (val > best)
+						assert(newstate.isGameOver());
+						return leafNode(node, newstate);
+					}
+					assert(turnResult == MoveResult.Ok);
+					// TODO: chance nodes mixed with non-chance-nodes in same turn do not work
+					//boolean chance = node.isChanceNode(); // isChanceNode is not valid until 1st turn
+					// just check to see if any of the nodes in this turn are chance nodes
+					boolean chance = false;
+					Node n = child;
+					while (n != null) {
+						if (n.isChanceNode())
+							chance = true;
+						if (n == node)
+							break;
+						n = n.getParent();
+					}
+					if (chance)
+					{
+						if (disallowChanceNodes)
+							throw new SearchOverflowException("Chance node not allowed");
+						
+						alpha = GameState.SCORE_MIN;
+						beta = GameState.SCORE_MAX;
+						// TODO: add probabilities
+					}
+					
+					// recurse
+					int val = minimax(newstate, child, alpha, beta);
+
+					currentNode = child;
+					
+					nchildren++;
+					
+					if (node.isChanceNode())
+					{
+						// TODO: weight by probability?
+						// TODO: expectimax star1, star2
+						total += val;
+						node.pv = child.pv != null ? child.pv : child; // TODO?
+					} else {
+						// compute new alpha and beta
+						if (max)
 						{
-							if (val > alpha)
+							if (val > best)
 							{
-								node.pv = child.pv != null ? child.pv : child;
-								child.markForCutoff();
-								if (debug)
-									prdebug(node, "raised alpha from " + alpha + " -> " + val + "; pv = " + node.pv);
-								alpha = val;
-								entryType = EntryType.EXACT;
+								if (val > alpha)
+								{
+									if (packedTable != null)
+										bestMove = child.getMoveAtDepth(level+1).getMoveIndex();
+									node.pv = child.pv != null ? child.pv : child;
+									child.markForCutoff();
+									if (debug)
+										prdebug(node, "raised alpha from " + alpha + " -> " + val + "; pv = " + node.pv);
+									alpha = val;
+									entryType = EntryType.EXACT;
+								}
+								best = val;
 							}
-							best = val;
-						}
-					} else
-					{
-						if (val < best)
+						} else
 						{
-							if (val < beta)
+							if (val < best)
 							{
-								node.pv = child.pv != null ? child.pv : child;
-								child.markForCutoff();
-								if (debug)
-									prdebug(node, "lowered beta from " + beta + " -> " + val + "; pv = " + node.pv);
-								beta = val;
-								entryType = EntryType.EXACT;
+								if (val < beta)
+								{
+									if (packedTable != null)
+										bestMove = child.getMoveAtDepth(level+1).getMoveIndex();
+									node.pv = child.pv != null ? child.pv : child;
+									child.markForCutoff();
+									if (debug)
+										prdebug(node, "lowered beta from " + beta + " -> " + val + "; pv = " + node.pv);
+									beta = val;
+									entryType = EntryType.EXACT;
+								}
+								best = val;
 							}
-							best = val;
+						}
+						// do alpha-beta cutoff
+						if (cutoff && beta <= alpha)
+						{
+							if (debug)
+								prdebug(node, "pruned " + beta + " <= " + alpha);
+							numCutoffs++;
+							// use getParent() to make sure it works when a turn has >1 levels
+							if ((child.getParent().cutoffMask & (1L << child.getMoveIndex())) != 0)
+								numEarlyCutoffs++;
+							child.markForCutoff();
+							node.complete();
+							entryType = v3||max ? EntryType.LOWER : EntryType.UPPER;
+							break;
 						}
 					}
-					// do alpha-beta cutoff
-					if (cutoff && beta <= alpha)
-					{
-						if (debug)
-							prdebug(node, "pruned " + beta + " <= " + alpha);
-						numCutoffs++;
-						// use getParent() to make sure it works when a turn has >1 levels
-						if ((child.getParent().cutoffMask & (1L << child.getMoveIndex())) != 0)
-							numEarlyCutoffs++;
-						child.markForCutoff();
-						node.complete();
-						entryType = v3||max ? EntryType.LOWER : EntryType.UPPER;
-						break;
-					}
+				} finally
+				{
+					if (undo)
+						oldstate.popUndo();
 				}
 			}
 			if (printLevelStats && level == printStatsLevel)
@@ -480,6 +717,12 @@ public class Minimax implements Decider, AISolver
 				if (debug)
 					prdebug(node, "Stored " + entry);
 			}
+			else if (packedTable != null && (max||v5))
+			{
+				packedTable.store(hash, ttkey, maxLevel - level, score, entryType, bestMove);
+				if (debug)
+					prdebug(node, "Stored " + entryType + " " + score + " move " + bestMove);
+			}
 			return score;
 		}
 	}
@@ -487,8 +730,13 @@ public class Minimax implements Decider, AISolver
 	private int leafNode(final Node node, GameState<?> oldstate) throws MoveFailedException
 	{
 		numLeavesVisited++;
+		if (stopped)
+			throw new SearchTimeoutException();
+		// treat the leaf budget like a deadline, so solve() returns what it has
 		if (maxNumLeaves > 0 && numLeavesVisited > maxNumLeaves)
-			throw new SearchOverflowException("Max leaves visited");
+			throw new SearchTimeoutException();
+		if ((numLeavesVisited & DEADLINE_CHECK_MASK) == 0 && SearchAlgorithmBase.isPastDeadline(deadline))
+			throw new SearchTimeoutException();
 		if (oldstate.isGameOver())
 		{
 			if (debug)
@@ -610,17 +858,24 @@ public class Minimax implements Decider, AISolver
 		return transpositionTable;
 	}
 
+	public PackedTranspositionTable getPackedTranspositionTable()
+	{
+		return packedTable;
+	}
+
 	//
 	
 	@Override
 	public AIDecider newSolver(GameState<?> initialState)
 	{
-		return new Solver(initialState, 0);
+		return newSolver(initialState, 0);
 	}
 
 	public AIDecider newSolver(GameState<?> initialState, int levelInc)
 	{
-		return new Solver(initialState, levelInc);
+		Solver solver = new Solver(initialState, levelInc);
+		solver.setTimeLimit(timeLimit);
+		return solver;
 	}
 	
 	public class Solver extends AIDecider
@@ -642,19 +897,26 @@ public class Minimax implements Decider, AISolver
 			// TODO: trans table works if nodes are at lower levels on next turn?
 			minimax = new Minimax(initialState, minimax);
 			minimax.setInitialChoices(turnActions, turnIndex); // TODO: will always visit these?
-			if (levelInc == 0 || minimax.transpositionTable == null)
+			long deadline = getDeadline();
+			minimax.setDeadline(deadline);
+			Line<Node> bestPath = null;
+			if (deadline == 0 && (levelInc == 0 || (minimax.transpositionTable == null && minimax.packedTable == null)))
 			{
+				minimax.newSearch();
 				minimax.solve();
+				bestPath = minimax.getPrincipalVariation();
 			} else {
-				// iterative deepening
-				int levelMax = minimax.maxLevel; // TODO
-				for (int l=levelInc*2; l<=levelMax; l+=levelInc*2)
-				{
-					minimax.setMaxLevel(l);
-					minimax.solve();
-				}
+				// iterative deepening, keeping the PV of the deepest search that finished in time
+				int step = levelInc > 0 ? levelInc*2 : 1;
+				IterativeDeepening deepening = new IterativeDeepening(minimax, step, step, minimax.maxLevel);
+				deepening.setDeadline(deadline);
+				deepening.solve();
+				bestPath = deepening.getPrincipalVariation();
+				// out of time before the first search finished, take what we have
+				if (bestPath == null)
+					bestPath = minimax.getPrincipalVariation();
 			}
-			Line<Node> bestPath = minimax.getPrincipalVariation();
+			lastSolveIterations = minimax.numLeavesVisited();
 			System.out.println(minimax + " Best: " + bestPath);
 			if (bestPath == null)
 			{
@@ -681,10 +943,16 @@ public class Minimax implements Decider, AISolver
 		}
 	}
 
+	// search this line first, as far as it goes, e.g. the principal variation of a shallower search
+	public void setPrincipalVariationHint(Line<?> line)
+	{
+		this.pvHint = line != null ? line.getIndices() : null;
+	}
+
 	@Override
 	public Thread[] getThreads()
 	{
-		return null;
+		return numThreads > 1 ? ThreadUtils.getThreadPoolExecutorThreads() : null;
 	}
 
 	@Override
@@ -1,58 +1,163 @@
 package com.puzzlingplans.ai.search;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Maps a move mask to a subset of it (the moves to try first), in a fixed-size
+ * open-addressed table of (key, value) long pairs, updated with CAS.
+ * Keys are never removed, only their values cleared, so a probe can stop at
+ * the first empty slot. When a key's probe window is full it takes over its
+ * home slot. These are only hints, so a racing update that lands on a key
+ * which was just replaced costs some move ordering, nothing more.
+ */
 public class MoveMaskHash
 {
-	// TODO: could be faster impl
-	Map<Long,Long> hash = new HashMap<Long,Long>();
-	
-	public synchronized void addIndex(long key, int index)
+	private static final int MAX_PROBES = 8;
+
+	private final AtomicLongArray table; // key at 2*i, value at 2*i+1; key 0 = empty
+	private final int mask;
+	private final int shift;
+
+	//
+
+	// small, since some callers make a Minimax (and so one of these) per playout
+	public MoveMaskHash()
+	{
+		this(10);
+	}
+
+	public MoveMaskHash(int numEntriesLog2)
+	{
+		assert(numEntriesLog2 > 0 && numEntriesLog2 <= 28);
+		this.table = new AtomicLongArray(2 << numEntriesLog2);
+		this.mask = (1 << numEntriesLog2) - 1;
+		this.shift = 64 - numEntriesLog2;
+	}
+
+	private int home(long key)
+	{
+		// move masks have few bits set, so mix them before taking the top bits
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	// slot holding key, or -1
+	private int find(long key)
+	{
+		int i = home(key);
+		for (int j=0; j<MAX_PROBES; j++)
+		{
+			long k = table.get(i*2);
+			if (k == key)
+				return i;
+			if (k == 0)
+				return -1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	// slot holding key, claiming an empty one (or the home slot) if it isn't there
+	private int findOrClaim(long key)
+	{
+		int i = home(key);
+		for (int j=0; j<MAX_PROBES; j++)
+		{
+			long k = table.get(i*2);
+			if (k == key)
+				return i;
+			if (k == 0 && (table.compareAndSet(i*2, 0, key) || table.get(i*2) == key))
+				return i;
+			i = (i + 1) & mask;
+		}
+		i = home(key);
+		table.set(i*2+1, 0);
+		table.set(i*2, key);
+		return i;
+	}
+
+	public void addIndex(long key, int index)
 	{
 		if (key == 0)
 			return;
-		
-		Long ordered = hash.get(key);
+
+		int i = findOrClaim(key);
 		long value = 1L<<index;
 		//assert((key & value) != 0);
-		if (ordered == null || (ordered | value) == key) // reset if key==value
-			hash.put(key, value);
-		else if ((ordered | value) != ordered)
-			hash.put(key, ordered | value);
+		long ordered;
+		long updated;
+		do {
+			ordered = table.get(i*2+1);
+			if (ordered == 0 || (ordered | value) == key) // reset if key==value
+				updated = value;
+			else
+				updated = ordered | value;
+			if (updated == ordered)
+				return;
+		} while (!table.compareAndSet(i*2+1, ordered, updated));
 	}
 
-	public synchronized void removeIndex(long key, int index)
+	public void removeIndex(long key, int index)
 	{
 		if (key == 0)
 			return;
-		
-		Long ordered = hash.get(key);
+
+		int i = find(key);
+		if (i < 0)
+			return;
 		long value = 1L<<index;
-		//assert((key & value) != 0);
-		if (ordered != null && (ordered | value) != 0)
-			hash.put(key, ordered & ~value);
+		long ordered;
+		do {
+			ordered = table.get(i*2+1);
+			if ((ordered & value) == 0)
+				return;
+		} while (!table.compareAndSet(i*2+1, ordered, ordered & ~value));
 	}
 
-	public synchronized long getForMask(long key)
+	public long getForMask(long key)
 	{
-		Long l = hash.get(key);
-		return l != null ? l : 0;
+		if (key == 0)
+			return 0;
+
+		int i = find(key);
+		if (i < 0)
+			return 0;
+		long value = table.get(i*2+1);
+		// slot taken over by another key meanwhile?
+		return table.get(i*2) == key ? value : 0;
 	}
 
-	public synchronized void replaceIndex(long key, int index)
+	public void replaceIndex(long key, int index)
 	{
 		if (key == 0)
 			return;
 
 		long value = 1L<<index;
 		//assert((key & value) != 0);
-		hash.put(key, value);
+		table.set(findOrClaim(key)*2+1, value);
+	}
+
+	public void removeAllIndices(long key)
+	{
+		if (key == 0)
+			return;
+
+		int i = find(key);
+		if (i >= 0)
+			table.set(i*2+1, 0);
+	}
+
+	public int countEntries()
+	{
+		int n = 0;
+		for (int i=0; i<=mask; i++)
+			if (table.get(i*2+1) != 0)
+				n++;
+		return n;
 	}
 
-	public synchronized void removeAllIndices(long key)
+	public int capacity()
 	{
-		hash.remove(key);
+		return mask + 1;
 	}
 
 }
@@ -0,0 +1,316 @@
+package com.puzzlingplans.ai.search;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Struct-of-arrays node storage for MCTS.
+ * A node is an int id indexing a set of primitive columns, so a big tree
+ * costs a handful of arrays instead of millions of heap objects.
+ * Columns grow in fixed-size chunks that are never moved, so other threads
+ * can keep reading while the arena grows. reset() just rewinds the
+ * allocators, and the chunks are reused by the next search.
+ */
+class NodeArena
+{
+	static final int NONE = 0; // id 0 is never allocated
+
+	// bits in the flags column
+	static final int CHANCE = 1;
+	static final int END_OF_TURN = 2;
+	static final int SNAPSHOT = 4;		// a copy of the state at this node was cached
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	final IntColumn parent = new IntColumn();
+	final IntColumn moveIndex = new IntColumn();
+	final IntColumn level = new IntColumn();
+	final IntColumn factor = new IntColumn();			// 1 = us, -1 = them, 0 = chance
+	final IntColumn flags = new IntColumn();
+	final IntColumn visits = new IntColumn();
+	final IntColumn virtualLoss = new IntColumn();
+	final IntColumn childBase = new IntColumn();		// offset of child slab in childSlots, or NONE
+	final IntColumn pessimisticBound = new IntColumn();
+	final IntColumn optimisticBound = new IntColumn();
+	final LongColumn allMoves = new LongColumn();
+	final LongColumn visitedMoves = new LongColumn();
+	final LongColumn invalidMoves = new LongColumn();
+	final LongColumn solvedMoves = new LongColumn();
+	final LongColumn totalScore = new LongColumn();		// double
+	final LongColumn totalWeight = new LongColumn();	// double
+
+	private final IntColumn[] intColumns = { parent, moveIndex, level, factor, flags, visits, virtualLoss, childBase, pessimisticBound, optimisticBound };
+	private final LongColumn[] longColumns = { allMoves, visitedMoves, invalidMoves, solvedMoves, totalScore, totalWeight };
+
+	// child slabs: one slot per bit in a node's allMoves, holding child ids
+	final IntColumn childSlots = new IntColumn();
+
+	private final AtomicInteger nextNode = new AtomicInteger(1);
+	private final AtomicInteger nextSlot = new AtomicInteger(1);
+	private volatile int nodeCapacity;
+	private volatile int slotCapacity;
+
+	//
+
+	public int allocate(int parentId, int index, int fac, long moves)
+	{
+		int id = nextNode.getAndIncrement();
+		if (id >= nodeCapacity)
+			growNodes(id + 1);
+		// the id is published later by a CAS, so ordered writes are enough here
+		parent.init(id, parentId);
+		moveIndex.init(id, index);
+		level.init(id, parentId == NONE ? 0 : level.get(parentId) + 1);
+		factor.init(id, fac);
+		flags.init(id, 0);
+		visits.init(id, 0);
+		virtualLoss.init(id, 0);
+		childBase.init(id, NONE);
+		pessimisticBound.init(id, Integer.MIN_VALUE);
+		optimisticBound.init(id, Integer.MAX_VALUE);
+		allMoves.init(id, moves);
+		visitedMoves.init(id, 0);
+		invalidMoves.init(id, 0);
+		solvedMoves.init(id, 0);
+		totalScore.init(id, 0);
+		totalWeight.init(id, 0);
+		return id;
+	}
+
+	// allocate the child slab for a node, returns its offset
+	public int allocateChildren(int id)
+	{
+		int n = numChildSlots(id);
+		int base = nextSlot.getAndAdd(n);
+		if (base + n > slotCapacity)
+			growSlots(base + n);
+		for (int i=0; i<n; i++)
+			childSlots.init(base + i, NONE);
+		// another thread may have beaten us to it, if so the slab is wasted
+		if (!childBase.compareAndSet(id, NONE, base))
+			return childBase.get(id);
+		return base;
+	}
+
+	public final int numChildSlots(int id)
+	{
+		return Long.bitCount(allMoves.get(id));
+	}
+
+	// position of the child for a move index within a slab
+	public static int childSlot(long moves, int index)
+	{
+		return Long.bitCount(moves & ((1L << index) - 1));
+	}
+
+	public int getChild(int id, int index)
+	{
+		int base = childBase.get(id);
+		long moves = allMoves.get(id);
+		if (base == NONE || ((1L << index) & moves) == 0)
+			return NONE;
+		return childSlots.get(base + childSlot(moves, index));
+	}
+
+	public final boolean hasFlag(int id, int flag)
+	{
+		return (flags.get(id) & flag) != 0;
+	}
+
+	public final void setFlag(int id, int flag)
+	{
+		flags.orMask(id, flag);
+	}
+
+	public final void clearFlag(int id, int flag)
+	{
+		flags.andMask(id, ~flag);
+	}
+
+	public int size()
+	{
+		return nextNode.get() - 1;
+	}
+
+	public int capacity()
+	{
+		return nodeCapacity;
+	}
+
+	// forget all nodes, but keep the memory around for the next search
+	public void reset()
+	{
+		nextNode.set(1);
+		nextSlot.set(1);
+	}
+
+	// copies a node to a lower id, when compacting
+	void move(int from, int to)
+	{
+		assert(to <= from);
+		for (IntColumn col : intColumns)
+			col.set(to, col.get(from));
+		for (LongColumn col : longColumns)
+			col.set(to, col.get(from));
+	}
+
+	// after compacting, keep only the first numNodes nodes and numSlots child slots
+	void truncate(int numNodes, int numSlots)
+	{
+		nextNode.set(numNodes + 1);
+		nextSlot.set(numSlots + 1);
+	}
+
+	private synchronized void growNodes(int n)
+	{
+		while (nodeCapacity < n)
+		{
+			for (IntColumn col : intColumns)
+				col.addChunk();
+			for (LongColumn col : longColumns)
+				col.addChunk();
+			nodeCapacity += CHUNK_SIZE;
+		}
+	}
+
+	private synchronized void growSlots(int n)
+	{
+		while (slotCapacity < n)
+		{
+			childSlots.addChunk();
+			slotCapacity += CHUNK_SIZE;
+		}
+	}
+
+	//
+
+	static final class IntColumn
+	{
+		private AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+
+		public final int get(int i)
+		{
+			return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+		}
+
+		public final void set(int i, int value)
+		{
+			chunks[i >>> CHUNK_BITS].set(i & CHUNK_MASK, value);
+		}
+
+		final void init(int i, int value)
+		{
+			chunks[i >>> CHUNK_BITS].lazySet(i & CHUNK_MASK, value);
+		}
+
+		public final boolean compareAndSet(int i, int expect, int update)
+		{
+			return chunks[i >>> CHUNK_BITS].compareAndSet(i & CHUNK_MASK, expect, update);
+		}
+
+		public final int addAndGet(int i, int delta)
+		{
+			return chunks[i >>> CHUNK_BITS].addAndGet(i & CHUNK_MASK, delta);
+		}
+
+		public final void orMask(int i, int bits)
+		{
+			AtomicIntegerArray chunk = chunks[i >>> CHUNK_BITS];
+			int j = i & CHUNK_MASK;
+			int old;
+			do {
+				old = chunk.get(j);
+				if ((old | bits) == old)
+					return;
+			} while (!chunk.compareAndSet(j, old, old | bits));
+		}
+
+		public final void andMask(int i, int bits)
+		{
+			AtomicIntegerArray chunk = chunks[i >>> CHUNK_BITS];
+			int j = i & CHUNK_MASK;
+			int old;
+			do {
+				old = chunk.get(j);
+				if ((old & bits) == old)
+					return;
+			} while (!chunk.compareAndSet(j, old, old & bits));
+		}
+
+		private void addChunk()
+		{
+			AtomicIntegerArray[] arr = new AtomicIntegerArray[chunks.length + 1];
+			System.arraycopy(chunks, 0, arr, 0, chunks.length);
+			arr[chunks.length] = new AtomicIntegerArray(CHUNK_SIZE);
+			chunks = arr;
+		}
+	}
+
+	static final class LongColumn
+	{
+		private AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+		public final long get(int i)
+		{
+			return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+		}
+
+		public final void set(int i, long value)
+		{
+			chunks[i >>> CHUNK_BITS].set(i & CHUNK_MASK, value);
+		}
+
+		final void init(int i, long value)
+		{
+			chunks[i >>> CHUNK_BITS].lazySet(i & CHUNK_MASK, value);
+		}
+
+		public final boolean compareAndSet(int i, long expect, long update)
+		{
+			return chunks[i >>> CHUNK_BITS].compareAndSet(i & CHUNK_MASK, expect, update);
+		}
+
+		public final void orMask(int i, long bits)
+		{
+			AtomicLongArray chunk = chunks[i >>> CHUNK_BITS];
+			int j = i & CHUNK_MASK;
+			long old;
+			do {
+				old = chunk.get(j);
+				if ((old | bits) == old)
+					return;
+			} while (!chunk.compareAndSet(j, old, old | bits));
+		}
+
+		public final double getDouble(int i)
+		{
+			return Double.longBitsToDouble(get(i));
+		}
+
+		public final void setDouble(int i, double value)
+		{
+			set(i, Double.doubleToRawLongBits(value));
+		}
+
+		public final void addDouble(int i, double delta)
+		{
+			AtomicLongArray chunk = chunks[i >>> CHUNK_BITS];
+			int j = i & CHUNK_MASK;
+			long old;
+			do {
+				old = chunk.get(j);
+			} while (!chunk.compareAndSet(j, old, Double.doubleToRawLongBits(Double.longBitsToDouble(old) + delta)));
+		}
+
+		private void addChunk()
+		{
+			AtomicLongArray[] arr = new AtomicLongArray[chunks.length + 1];
+			System.arraycopy(chunks, 0, arr, 0, chunks.length);
+			arr[chunks.length] = new AtomicLongArray(CHUNK_SIZE);
+			chunks = arr;
+		}
+	}
+}
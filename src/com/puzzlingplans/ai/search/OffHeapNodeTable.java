@@ -0,0 +1,410 @@
+package com.puzzlingplans.ai.search;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.puzzlingplans.ai.search.MCRAVE.TreeNode;
+
+/**
+ * Hash table of MCRAVE nodes kept outside the Java heap, in direct buffers
+ * or a memory-mapped file, so it can hold far more nodes than the GC would
+ * put up with. Each slot is a fixed-width record: the node's keys, visits
+ * move masks and generation, then q/q2/n/n2 for its first maxActions actions.
+ * Nodes are copied in and out, so MCRAVE uses this as a second level
+ * behind its on-heap table (see MCRAVE.setOffHeapNodes()).
+ * A mapped file keeps its nodes after close(), so it can be reopened later
+ * with the same size and maxActions; its header is checked on open.
+ * Rollout threads all go through here, so instead of one lock there is one
+ * per range of slots, and an operation locks the (one or two) ranges its
+ * probe window covers.
+ */
+public class OffHeapNodeTable implements Closeable
+{
+	// record layout
+	private static final int KEY = 0;			// long, hash of the node (TreeNode.key)
+	private static final int KEY2 = 8;			// long, the table's check key
+	private static final int MASK = 16;
+	private static final int EXPANDED = 24;
+	private static final int INVALID = 32;
+	private static final int SOLVED = 40;
+	private static final int VISITS = 48;		// int, 0 = empty slot
+	private static final int LEVEL = 52;		// short
+	private static final int NUM_ACTIONS = 54;	// short
+	private static final int GENERATION = 56;	// int, then 4 bytes padding
+	private static final int ACTIONS = 64;		// packed (n, q) and (n2, q2) longs for each action, as in TreeNode.stats
+	private static final int ACTION_SIZE = 16;
+
+	// file header, records start after it
+	private static final int MAGIC = 0x4d43524e;	// "MCRN"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;		// magic, version, record size, numEntriesLog2, maxActions, then padding
+
+	private static final int MAX_SEGMENT_BYTES = 1 << 30;
+	private static final int MAX_LOCKS_LOG2 = 8;
+	private static final int MIN_SLOTS_PER_LOCK_LOG2 = 4;		// must be more than maxCollisions
+
+	private final int size;
+	private final int mask;
+	private final int maxCollisions;
+	private final int maxActions;
+	private final int recordSize;
+	private final int segmentBits;
+	private final int segmentMask;
+	private final ByteBuffer[] segments;
+	private final RandomAccessFile file;
+	private final ReentrantLock[] locks;
+	private final int lockShift;
+
+	private final AtomicInteger numKeys = new AtomicInteger();
+
+	public long totalStores;
+	public long totalLoads;
+	public long totalReplaced;
+	public long totalDropped;
+
+	//
+
+	public OffHeapNodeTable(int numEntriesLog2, int maxActions)
+	{
+		this(numEntriesLog2, maxActions, 8, null);
+	}
+
+	public OffHeapNodeTable(int numEntriesLog2, int maxActions, File path) throws IOException
+	{
+		this(numEntriesLog2, maxActions, 8, openFile(path, numEntriesLog2, maxActions));
+	}
+
+	// opens the file, writing a header if it's new, or checking it isn't laid out differently
+	private static RandomAccessFile openFile(File path, int numEntriesLog2, int maxActions) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		int recordSize = recordSize(maxActions);
+		if (file.length() == 0)
+		{
+			file.writeInt(MAGIC);
+			file.writeInt(VERSION);
+			file.writeInt(recordSize);
+			file.writeInt(numEntriesLog2);
+			file.writeInt(maxActions);
+			return file;
+		}
+		String error = null;
+		if (file.length() < HEADER_SIZE || file.readInt() != MAGIC)
+			error = "not a node table";
+		else if (file.readInt() != VERSION)
+			error = "unsupported version";
+		else if (file.readInt() != recordSize || file.readInt() != numEntriesLog2 || file.readInt() != maxActions)
+			error = "table was created with a different size or maxActions";
+		if (error != null)
+		{
+			file.close();
+			throw new IOException(path + ": " + error);
+		}
+		return file;
+	}
+
+	private static int recordSize(int maxActions)
+	{
+		return ACTIONS + maxActions * ACTION_SIZE;
+	}
+
+	private OffHeapNodeTable(int numEntriesLog2, int maxActions, int numCollisions, RandomAccessFile file)
+	{
+		assert(numEntriesLog2 > 0 && numEntriesLog2 <= 30);
+		assert(maxActions >= 0 && maxActions <= 64);
+		this.size = 1 << numEntriesLog2;
+		this.mask = size - 1;
+		this.maxCollisions = numCollisions;
+		this.maxActions = maxActions;
+		this.recordSize = recordSize(maxActions);
+		int bits = numEntriesLog2;
+		while (bits > 0 && ((long) recordSize << bits) > MAX_SEGMENT_BYTES)
+			bits--;
+		this.segmentBits = bits;
+		this.segmentMask = (1 << bits) - 1;
+		this.segments = new ByteBuffer[size >>> bits];
+		this.file = file;
+		int locksLog2 = Math.max(0, Math.min(MAX_LOCKS_LOG2, numEntriesLog2 - MIN_SLOTS_PER_LOCK_LOG2));
+		assert(numCollisions < (1 << (numEntriesLog2 - locksLog2)));
+		this.lockShift = numEntriesLog2 - locksLog2;
+		this.locks = new ReentrantLock[1 << locksLog2];
+		for (int l=0; l<locks.length; l++)
+			locks[l] = new ReentrantLock();
+		try
+		{
+			long segmentBytes = (long) recordSize << bits;
+			for (int s=0; s<segments.length; s++)
+			{
+				if (file != null)
+					segments[s] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + s * segmentBytes, segmentBytes);
+				else
+					segments[s] = ByteBuffer.allocateDirect((int) segmentBytes);
+			}
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		if (file != null)
+			numKeys.set(countEntries());
+	}
+
+	//
+
+	private ByteBuffer segment(int i)
+	{
+		return segments[i >>> segmentBits];
+	}
+
+	private int offset(int i)
+	{
+		return (i & segmentMask) * recordSize;
+	}
+
+	// locks the slot ranges covering the probe window from hash's home slot, lowest first
+	private void lockWindow(long hash)
+	{
+		int first = (int) (hash & mask) >>> lockShift;
+		int last = (((int) (hash & mask) + maxCollisions) & mask) >>> lockShift;
+		locks[Math.min(first, last)].lock();
+		if (first != last)
+			locks[Math.max(first, last)].lock();
+	}
+
+	private void unlockWindow(long hash)
+	{
+		int first = (int) (hash & mask) >>> lockShift;
+		int last = (((int) (hash & mask) + maxCollisions) & mask) >>> lockShift;
+		if (first != last)
+			locks[last].unlock();
+		locks[first].unlock();
+	}
+
+	private int findIndex(long hash, long key)
+	{
+		int i = (int) (hash & mask);
+		for (int j=0; j<=maxCollisions; j++)
+		{
+			ByteBuffer buf = segment(i);
+			int ofs = offset(i);
+			if (buf.getInt(ofs + VISITS) != 0 && buf.getLong(ofs + KEY2) == key && buf.getLong(ofs + KEY) == hash)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copies a node into the table, replacing an older copy of it.
+	 * If its probe window is full, the least visited node in it makes way,
+	 * unless that one has more visits than this node.
+	 * Actions past maxActions are not kept.
+	 */
+	public boolean put(long key, TreeNode node)
+	{
+		lockWindow(node.key);
+		try
+		{
+			int index = findIndex(node.key, key);
+			if (index < 0)
+			{
+				int minVisits = Integer.MAX_VALUE;
+				int i = (int) (node.key & mask);
+				for (int j=0; j<=maxCollisions; j++)
+				{
+					int v = segment(i).getInt(offset(i) + VISITS);
+					if (v < minVisits)
+					{
+						minVisits = v;
+						index = i;
+					}
+					i = (i + 1) & mask;
+				}
+				if (minVisits > node.numVisits)
+				{
+					totalDropped++;
+					return false;
+				}
+				if (minVisits > 0)
+					totalReplaced++;
+				else
+					numKeys.incrementAndGet();
+			}
+			write(segment(index), offset(index), key, node);
+			totalStores++;
+			return true;
+		} finally
+		{
+			unlockWindow(node.key);
+		}
+	}
+
+	public TreeNode get(long hash, long key)
+	{
+		lockWindow(hash);
+		try
+		{
+			int index = findIndex(hash, key);
+			if (index < 0)
+				return null;
+			totalLoads++;
+			return read(segment(index), offset(index));
+		} finally
+		{
+			unlockWindow(hash);
+		}
+	}
+
+	// frees the slot, if it still holds the copy get() returned (the one with this many visits)
+	public boolean remove(long hash, long key, int numVisits)
+	{
+		lockWindow(hash);
+		try
+		{
+			int index = findIndex(hash, key);
+			if (index < 0)
+				return false;
+			ByteBuffer buf = segment(index);
+			int ofs = offset(index);
+			if (buf.getInt(ofs + VISITS) != Math.max(1, numVisits))
+				return false;
+			buf.putInt(ofs + VISITS, 0);
+			numKeys.decrementAndGet();
+			return true;
+		} finally
+		{
+			unlockWindow(hash);
+		}
+	}
+
+	public boolean containsEntry(long hash, long key)
+	{
+		lockWindow(hash);
+		try
+		{
+			return findIndex(hash, key) >= 0;
+		} finally
+		{
+			unlockWindow(hash);
+		}
+	}
+
+	private void write(ByteBuffer buf, int ofs, long key, TreeNode node)
+	{
+		buf.putLong(ofs + KEY, node.key);
+		buf.putLong(ofs + KEY2, key);
+		buf.putLong(ofs + MASK, node.mask);
+		buf.putLong(ofs + EXPANDED, node.expandedMoves);
+		buf.putLong(ofs + INVALID, node.invalidMoves);
+		buf.putLong(ofs + SOLVED, node.solvedMoves);
+		buf.putInt(ofs + VISITS, Math.max(1, node.numVisits));
+		buf.putShort(ofs + LEVEL, node.level);
+		buf.putInt(ofs + GENERATION, node.generation);
+		AtomicLongArray stats = node.stats;
+		int n = Math.min(stats.length() >> 1, maxActions);
+		while (n > 0 && !node.hasAction(n-1))
+			n--;
+		buf.putShort(ofs + NUM_ACTIONS, (short) n);
+		for (int a=0; a<n; a++)
+		{
+			int p = ofs + ACTIONS + a * ACTION_SIZE;
+			buf.putLong(p, stats.get(a*2));
+			buf.putLong(p + 8, stats.get(a*2+1));
+		}
+	}
+
+	private TreeNode read(ByteBuffer buf, int ofs)
+	{
+		long nodeMask = buf.getLong(ofs + MASK);
+		TreeNode node = new TreeNode(buf.getLong(ofs + KEY), nodeMask, buf.getShort(ofs + LEVEL));
+		node.expandedMoves = buf.getLong(ofs + EXPANDED);
+		node.invalidMoves = buf.getLong(ofs + INVALID);
+		node.solvedMoves = buf.getLong(ofs + SOLVED);
+		node.numVisits = buf.getInt(ofs + VISITS);
+		node.generation = buf.getInt(ofs + GENERATION);
+		int n = Math.min(buf.getShort(ofs + NUM_ACTIONS), node.getNumActions());
+		for (int a=0; a<n; a++)
+		{
+			int p = ofs + ACTIONS + a * ACTION_SIZE;
+			node.stats.set(a*2, buf.getLong(p));
+			node.stats.set(a*2+1, buf.getLong(p + 8));
+		}
+		return node;
+	}
+
+	//
+
+	public void clear()
+	{
+		for (ReentrantLock lock : locks)
+			lock.lock();
+		try
+		{
+			for (int i=0; i<size; i++)
+				segment(i).putInt(offset(i) + VISITS, 0);
+			numKeys.set(0);
+		} finally
+		{
+			for (ReentrantLock lock : locks)
+				lock.unlock();
+		}
+		resetStatistics();
+	}
+
+	public void resetStatistics()
+	{
+		this.totalStores = 0;
+		this.totalLoads = 0;
+		this.totalReplaced = 0;
+		this.totalDropped = 0;
+	}
+
+	// exact only while no one is writing
+	public int countEntries()
+	{
+		int n = 0;
+		for (int i=0; i<size; i++)
+			if (segment(i).getInt(offset(i) + VISITS) != 0)
+				n++;
+		return n;
+	}
+
+	public int keyCount()
+	{
+		return numKeys.get();
+	}
+
+	public int capacity()
+	{
+		return size;
+	}
+
+	public int recordSize()
+	{
+		return recordSize;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (file == null)
+			return;
+		for (ByteBuffer seg : segments)
+			((MappedByteBuffer) seg).force();
+		file.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[keys=" + keyCount() + "/" + size + " x " + recordSize + " bytes, stores=" + totalStores + ", loads=" + totalLoads
+				+ ", replaced=" + totalReplaced + ", dropped=" + totalDropped + "]";
+	}
+}
@@ -0,0 +1,190 @@
+package com.puzzlingplans.ai.search;
+
+import java.util.Arrays;
+
+import com.puzzlingplans.ai.search.TranspositionTable.EntryType;
+
+// http://chessprogramming.wikispaces.com/Transposition+Table#ReplacementStrategies
+// http://www.craftychess.com/hyatt/hashing.html
+
+/**
+ * Transposition table kept in one long[], with no objects per entry.
+ * Each bucket has two slots: the first keeps the deepest entry stored in the
+ * current search, the second takes whatever the first one turned away.
+ * A slot is two longs, (key ^ data) and data, so a reader that sees half
+ * of another thread's write just misses instead of getting a wrong entry.
+ * Data packs value (32 bits), level (12), type (2), best move + 1 (7),
+ * the search age (8) and a used bit; probe() returns it, or 0 if not found.
+ */
+public class PackedTranspositionTable
+{
+	private static final int LEVEL_SHIFT = 32;
+	private static final int TYPE_SHIFT = 44;
+	private static final int MOVE_SHIFT = 46;
+	private static final int AGE_SHIFT = 53;
+	private static final long USED = 1L << 63;
+	private static final int MAX_LEVEL = (1 << 12) - 1;
+
+	private static final EntryType[] EntryTypeValues = EntryType.values();
+
+	private final int mask;
+	private final long[] table;
+	private int age;
+
+	public int totalStores;
+	public int totalReplaced;
+	public int totalDemoted;
+	public int totalProbes;
+	public int totalHits;
+
+	//
+
+	public PackedTranspositionTable(int numEntriesLog2)
+	{
+		assert(numEntriesLog2 > 1 && numEntriesLog2 <= 28);
+		int numBuckets = 1 << (numEntriesLog2 - 1);
+		this.mask = numBuckets - 1;
+		this.table = new long[numBuckets * 4];
+	}
+
+	// call once per move (not per depth), so entries from older searches are the first to go
+	public void newSearch()
+	{
+		age = (age + 1) & 0xff;
+	}
+
+	public long probe(long hash, long key)
+	{
+		totalProbes++;
+		int i = bucket(hash);
+		long data = table[i+1];
+		if (data != 0 && (table[i] ^ data) == key)
+		{
+			totalHits++;
+			return data;
+		}
+		data = table[i+3];
+		if (data != 0 && (table[i+2] ^ data) == key)
+		{
+			totalHits++;
+			return data;
+		}
+		return 0;
+	}
+
+	// bestMove is the index of the best first move found, or -1
+	public void store(long hash, long key, int level, int value, EntryType type, int bestMove)
+	{
+		assert(bestMove < 64);
+		long data = pack(level, value, type, bestMove);
+		int i = bucket(hash);
+		long data0 = table[i+1];
+		boolean sameKey = data0 != 0 && (table[i] ^ data0) == key;
+		if (data0 == 0 || sameKey || getAge(data0) != age || level >= getLevel(data0))
+		{
+			// keep what was in the first slot unless it's this position or empty
+			if (data0 != 0 && !sameKey)
+			{
+				table[i+2] = table[i];
+				table[i+3] = data0;
+				totalDemoted++;
+			}
+			else if (sameKey)
+				totalReplaced++;
+			table[i] = key ^ data;
+			table[i+1] = data;
+		} else {
+			if (table[i+3] != 0)
+				totalReplaced++;
+			table[i+2] = key ^ data;
+			table[i+3] = data;
+		}
+		totalStores++;
+	}
+
+	private int bucket(long hash)
+	{
+		return ((int) (hash ^ (hash >>> 32)) & mask) << 2;
+	}
+
+	private long pack(int level, int value, EntryType type, int bestMove)
+	{
+		return (value & 0xffffffffL)
+				| ((long) Math.min(level, MAX_LEVEL) << LEVEL_SHIFT)
+				| ((long) type.ordinal() << TYPE_SHIFT)
+				| ((long) (bestMove + 1) << MOVE_SHIFT)
+				| ((long) age << AGE_SHIFT)
+				| USED;
+	}
+
+	//
+
+	public static int getValue(long data)
+	{
+		return (int) data;
+	}
+
+	public static int getLevel(long data)
+	{
+		return (int) (data >>> LEVEL_SHIFT) & MAX_LEVEL;
+	}
+
+	public static EntryType getType(long data)
+	{
+		return EntryTypeValues[(int) (data >>> TYPE_SHIFT) & 3];
+	}
+
+	// index of the best first move, or -1
+	public static int getBestMove(long data)
+	{
+		return ((int) (data >>> MOVE_SHIFT) & 0x7f) - 1;
+	}
+
+	public static int getAge(long data)
+	{
+		return (int) (data >>> AGE_SHIFT) & 0xff;
+	}
+
+	public static String toString(long data)
+	{
+		return "[level=" + getLevel(data) + ", value=" + getValue(data) + ", type=" + getType(data) + ", move=" + getBestMove(data) + "]";
+	}
+
+	//
+
+	public void clear()
+	{
+		Arrays.fill(table, 0);
+		resetStatistics();
+	}
+
+	public void resetStatistics()
+	{
+		this.totalStores = 0;
+		this.totalReplaced = 0;
+		this.totalDemoted = 0;
+		this.totalProbes = 0;
+		this.totalHits = 0;
+	}
+
+	public int countEntries()
+	{
+		int n = 0;
+		for (int i=1; i<table.length; i+=2)
+			if (table[i] != 0)
+				n++;
+		return n;
+	}
+
+	public int capacity()
+	{
+		return table.length / 2;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[entries=" + countEntries() + "/" + capacity() + ", stores=" + totalStores + ", replaced=" + totalReplaced + ", demoted="
+				+ totalDemoted + ", hits=" + totalHits + "/" + totalProbes + "]";
+	}
+}
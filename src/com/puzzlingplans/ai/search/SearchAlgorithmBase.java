@@ -4,6 +4,10 @@ public abstract class SearchAlgorithmBase implements AISolver
 {
 	protected int numIters;
 	protected int maxLevel;
+	protected long timeLimit;
+
+	// checking the clock every few iterations is enough to answer on time
+	static final int DEADLINE_CHECK_MASK = 15;
 
 	public int getNumIters()
 	{
@@ -21,4 +25,18 @@ public abstract class SearchAlgorithmBase implements AISolver
 	{
 		this.maxLevel = maxLevel;
 	}
+	public long getTimeLimit()
+	{
+		return timeLimit;
+	}
+	// milliseconds per move for new solvers; numIters still bounds the search, unless it is 0
+	public void setTimeLimit(long millis)
+	{
+		this.timeLimit = millis;
+	}
+
+	static boolean isPastDeadline(long deadline)
+	{
+		return deadline != 0 && System.nanoTime() - deadline >= 0;
+	}
 }
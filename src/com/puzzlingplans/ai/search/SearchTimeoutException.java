@@ -0,0 +1,9 @@
+package com.puzzlingplans.ai.search;
+
+public class SearchTimeoutException extends SearchOverflowException
+{
+	public SearchTimeoutException()
+	{
+		super("Out of time");
+	}
+}
@@ -34,20 +34,34 @@ public abstract class Simulator<T extends LevelInfo> implements Decider
 	
 	//
 	
-	@SuppressWarnings("unchecked")
 	public Simulator(GameState<?> initialState, int maxLevel, int lookahead)
 	{
 		this.lookahead = lookahead;
+		setInitialState(initialState, maxLevel);
+	}
+
+	/**
+	 * Points the simulator at a new position, so it can be reused for
+	 * another search. The level array is only reallocated if it has to grow.
+	 */
+	@SuppressWarnings("unchecked")
+	public void setInitialState(GameState<?> initialState, int maxLevel)
+	{
 		this.maxLevel = maxLevel + lookahead;
 		this.initialState = initialState;
 		this.seekingPlayer = initialState.getCurrentPlayer();
 		this.numPlayers = initialState.getNumPlayers();
-		this.linfo = MiscUtils.newArray(newLevelInfo().getClass(), maxLevel + levelSlop);
-		for (int i=0; i<linfo.length; i++)
+		this.iterCount = 0;
+		int n = maxLevel + levelSlop;
+		if (linfo == null || linfo.length < n)
 		{
-			linfo[i] = (T) newLevelInfo();
-			linfo[i].reset();
+			T[] old = linfo;
+			this.linfo = MiscUtils.newArray(newLevelInfo().getClass(), n);
+			for (int i=0; i<linfo.length; i++)
+				linfo[i] = (old != null && i < old.length) ? old[i] : (T) newLevelInfo();
 		}
+		for (int i=0; i<linfo.length; i++)
+			linfo[i].reset();
 	}
 
 	protected LevelInfo newLevelInfo()
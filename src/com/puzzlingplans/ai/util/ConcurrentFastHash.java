@@ -0,0 +1,584 @@
+package com.puzzlingplans.ai.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free version of FastHash, for tables that many search threads
+ * read and insert into at once.
+ * Every slot has a sequence stamp that is odd while a writer owns it.
+ * Writers claim a slot with a CAS on its stamp; readers never lock,
+ * they retry if the stamp changed while they read the key and entry.
+ * With setGrowLimit(), a full table doubles in size and its entries
+ * migrate a chunk at a time during later operations.
+ * FastHash is still the one to use for GWT.
+ */
+public class ConcurrentFastHash<T>
+{
+	private final int maxCollisions;
+	private final float loadRatio;
+
+	private final AtomicReference<Tables<T>> tables = new AtomicReference<Tables<T>>();
+	private final AtomicBoolean growing = new AtomicBoolean();
+	private int maxSize;			// grow up to this many slots
+
+	private volatile int cullOrder;
+	private EvictionListener<T> evictionListener;
+	private final AtomicInteger cullCursor = new AtomicInteger();
+
+	private final AtomicInteger numKeys = new AtomicInteger();
+	private final AtomicInteger numMoves = new AtomicInteger();	// entries swapped, culled or migrated, readers retry a miss if it changed
+
+	// (not exact when threads collide)
+	public int totalInserts;
+	public int totalFailedInserts;
+	public int totalSwaps;
+	public int totalCulls;
+	public int totalRetries;
+	public int totalGrows;
+
+	private static final long NullHash = -9178294791873491491L;
+	private static final long MovedHash = -9178294791873491492L;	// slot of a table we're growing out of, already migrated
+
+	private static final int MIGRATE_CHUNK = 64;	// slots migrated per operation while growing
+	private static final int CULL_CHUNK = 256;		// slots swept per failed insert, besides the probe window
+
+	private static final Object RETRY = new Object();
+
+	// told about entries the table culls, e.g. to keep them somewhere else
+	public interface EvictionListener<T>
+	{
+		void evicted(long key, T entry);
+	}
+
+	//
+
+	// one generation of slots
+	private static final class Table<T>
+	{
+		final int size;
+		final int mask;
+		final AtomicLongArray keys;
+		final AtomicIntegerArray hashes;	// low bits of each key's hash, for moving it to a bigger table
+		final AtomicIntegerArray visits;
+		final AtomicReferenceArray<T> entries;
+		final AtomicIntegerArray stamps;
+		final AtomicInteger migrateCursor = new AtomicInteger();
+		final AtomicInteger migrated = new AtomicInteger();
+
+		Table(int size)
+		{
+			this.size = size;
+			this.mask = size-1;
+			this.keys = new AtomicLongArray(size);
+			this.hashes = new AtomicIntegerArray(size);
+			this.visits = new AtomicIntegerArray(size);
+			this.entries = new AtomicReferenceArray<T>(size);
+			this.stamps = new AtomicIntegerArray(size);
+			for (int i=0; i<size; i++)
+				keys.set(i, NullHash);
+		}
+
+		final int index(long hash)
+		{
+			return (int) (hash & mask);
+		}
+
+		// waits out a writer, returns the (even) stamp
+		int stableStamp(int i)
+		{
+			int s;
+			while (((s = stamps.get(i)) & 1) != 0)
+				Thread.yield();
+			return s;
+		}
+
+		boolean tryClaim(int i)
+		{
+			int s = stamps.get(i);
+			return (s & 1) == 0 && stamps.compareAndSet(i, s, s+1);
+		}
+
+		void claim(int i)
+		{
+			while (!tryClaim(i))
+				Thread.yield();
+		}
+
+		void release(int i)
+		{
+			stamps.incrementAndGet(i);
+		}
+	}
+
+	// the current table, and the one we're growing out of (or null)
+	private static final class Tables<T>
+	{
+		final Table<T> cur;
+		final Table<T> old;
+
+		Tables(Table<T> cur, Table<T> old)
+		{
+			this.cur = cur;
+			this.old = old;
+		}
+	}
+
+	//
+
+	public ConcurrentFastHash(int numEntriesLog2, int numCollisions)
+	{
+		this(numEntriesLog2, numCollisions, 0.75f);
+	}
+
+	public ConcurrentFastHash(int numEntriesLog2, float cullRatio, int cullOrder)
+	{
+		this(numEntriesLog2, FastHash.suggestedMaxCollisionsForRatio(cullRatio), cullRatio);
+		setAutoCull(cullOrder);
+	}
+
+	private ConcurrentFastHash(int numEntriesLog2, int numCollisions, float loadRatio)
+	{
+		assert(numEntriesLog2 > 0);
+		this.maxCollisions = numCollisions;
+		this.loadRatio = loadRatio;
+		this.maxSize = 1 << numEntriesLog2;
+		tables.set(new Tables<T>(new Table<T>(1 << numEntriesLog2), null));
+	}
+
+	public void setAutoCull(int order)
+	{
+		this.cullOrder = order;
+	}
+
+	public void setEvictionListener(EvictionListener<T> listener)
+	{
+		this.evictionListener = listener;
+	}
+
+	/**
+	 * Lets the table double in size, up to 2^maxEntriesLog2 entries, when it's
+	 * fuller than the load ratio or an insert runs out of probes.
+	 * Past that, inserts fall back to culling (see setAutoCull()).
+	 */
+	public void setGrowLimit(int maxEntriesLog2)
+	{
+		assert(maxEntriesLog2 < 31);
+		this.maxSize = Math.max(1 << maxEntriesLog2, capacity());
+	}
+
+	public final int hashIndex(long hash)
+	{
+		return tables.get().cur.index(hash);
+	}
+
+	// index in the current table, see FastHash.entryIndex()
+	public int entryIndex(long hash, long key)
+	{
+		return entryIndex(tables.get().cur, hash, key);
+	}
+
+	private int entryIndex(Table<T> t, long hash, long key)
+	{
+		int i = t.index(hash);
+		int n = 0;
+		do {
+			// a slot being written might be getting our key
+			t.stableStamp(i);
+			long k = t.keys.get(i);
+			if (k == key)
+				return i+1;
+			if (k == NullHash)
+				return -i-1;
+			i = (i + 1) & t.mask;
+		} while (n++ < maxCollisions);
+		return 0;
+	}
+
+	public T getEntryAt(long hash, long key)
+	{
+		while (true)
+		{
+			int moves = numMoves.get();
+			Tables<T> ts = tables.get();
+			Object e = null;
+			if (ts.old != null)
+			{
+				helpMigrate(ts);
+				// if it hasn't been migrated yet, it's still here
+				e = lookup(ts.old, hash, key);
+			}
+			if (e == null)
+				e = lookup(ts.cur, hash, key);
+			if (e == RETRY)
+			{
+				totalRetries++;
+				continue;
+			}
+			// not found, but it may have been moved past us
+			if (e != null || numMoves.get() == moves)
+				return (T) e;
+			totalRetries++;
+		}
+	}
+
+	// entry for key in one table, null if it isn't there, RETRY if the slot changed while we read it
+	private Object lookup(Table<T> t, long hash, long key)
+	{
+		int i = t.index(hash);
+		for (int n=0; n<=maxCollisions; n++, i = (i + 1) & t.mask)
+		{
+			int s = t.stableStamp(i);
+			long k = t.keys.get(i);
+			if (k == NullHash)
+				return null;
+			if (k != key)
+				continue;
+			T entry = t.entries.get(i);
+			// make sure the slot didn't change while we read it
+			if (t.stamps.get(i) != s)
+				return RETRY;
+			int v = t.visits.incrementAndGet(i);
+			promote(t, hash, key, i, v);
+			return entry;
+		}
+		return null;
+	}
+
+	// swap a busy entry into its home slot, if nobody else is using either one
+	private void promote(Table<T> t, long hash, long key, int i, int v)
+	{
+		int hi = t.index(hash);
+		if (i == hi || (v >> 1) <= t.visits.get(hi) || !t.tryClaim(hi))
+			return;
+		if (t.tryClaim(i))
+		{
+			long khi = t.keys.get(hi);
+			if (t.keys.get(i) == key && khi != key && khi != MovedHash)
+			{
+				numMoves.incrementAndGet();
+				swap(t, i, hi);
+			}
+			t.release(i);
+		}
+		t.release(hi);
+	}
+
+	private void swap(Table<T> t, int i, int j)
+	{
+		long k = t.keys.get(i);
+		int h = t.hashes.get(i);
+		int v = t.visits.get(i);
+		T e = t.entries.get(i);
+		t.keys.set(i, t.keys.get(j));
+		t.hashes.set(i, t.hashes.get(j));
+		t.visits.set(i, t.visits.get(j));
+		t.entries.set(i, t.entries.get(j));
+		t.keys.set(j, k);
+		t.hashes.set(j, h);
+		t.visits.set(j, v);
+		t.entries.set(j, e);
+		totalSwaps++;
+	}
+
+	// inserts or replaces the entry for a key, returns null if the table is full
+	public T insertEntry(long hash, long key, T entry)
+	{
+		return put(hash, key, entry, true);
+	}
+
+	// inserts the entry unless another thread got there first; returns whichever is in the table
+	public T insertIfAbsent(long hash, long key, T entry)
+	{
+		return put(hash, key, entry, false);
+	}
+
+	private T put(long hash, long key, T entry, boolean replace)
+	{
+		while (true)
+		{
+			Tables<T> ts = tables.get();
+			if (ts.old != null)
+			{
+				helpMigrate(ts);
+				// move our key over first, so we don't get overwritten by the old entry
+				int i = entryIndex(ts.old, hash, key);
+				if (i > 0)
+					migrateSlot(ts.old, i-1, ts.cur);
+			}
+			Object e = insertInto(ts.cur, (int) hash, key, entry, 1, replace);
+			if (e == RETRY)
+			{
+				totalRetries++;
+				continue;
+			}
+			if (e != null)
+			{
+				// if the table grew meanwhile, a thread that didn't see our entry
+				// may have put its own in the new table; go again, the one that
+				// ends up there (ours, when migrated, or theirs) is the one to return
+				if (tables.get().cur != ts.cur)
+				{
+					entry = (T) e;
+					continue;
+				}
+				if (e == entry)
+					totalInserts++;
+				if (numKeys.get() > ts.cur.size * loadRatio)
+					grow(ts);
+				return (T) e;
+			}
+			// insert failed; see if it's just because the table moved under us
+			if (tables.get() != ts)
+				continue;
+			// make the table bigger, or try to free up some room
+			if (grow(ts))
+				continue;
+			if (cullOrder > 0 && cullWindow(ts.cur, hash, cullOrder) > 0)
+				continue;
+			totalFailedInserts++;
+			return null;
+		}
+	}
+
+	// returns the entry in the table for key, null if there's no room, RETRY if the slot was taken under us
+	private Object insertInto(Table<T> t, int hash, long key, T entry, int visits, boolean replace)
+	{
+		int i = entryIndex(t, hash, key);
+		if (i == 0)
+			return null;
+		int index = i > 0 ? i-1 : -i-1;
+		t.claim(index);
+		long oldkey = t.keys.get(index);
+		// someone else took the slot, look again
+		if (oldkey != key && oldkey != NullHash)
+		{
+			t.release(index);
+			return RETRY;
+		}
+		if (oldkey == key && !replace)
+		{
+			T existing = t.entries.get(index);
+			t.release(index);
+			return existing;
+		}
+		if (oldkey == NullHash)
+			numKeys.incrementAndGet();
+		t.keys.set(index, key);
+		t.hashes.set(index, hash);
+		t.entries.set(index, entry);
+		t.visits.set(index, visits);
+		t.release(index);
+		return entry;
+	}
+
+	//
+
+	// starts doubling the table, returns false if we're at the limit
+	private boolean grow(Tables<T> ts)
+	{
+		if (ts.old != null)
+		{
+			// finish the last one first
+			helpMigrate(ts);
+			return true;
+		}
+		if (ts.cur.size >= maxSize)
+			return false;
+		if (!growing.compareAndSet(false, true))
+		{
+			Thread.yield();
+			return true;
+		}
+		try
+		{
+			if (tables.get() == ts)
+			{
+				Table<T> bigger = new Table<T>(ts.cur.size * 2);
+				numMoves.incrementAndGet();
+				tables.set(new Tables<T>(bigger, ts.cur));
+				totalGrows++;
+			}
+		} finally
+		{
+			growing.set(false);
+		}
+		return true;
+	}
+
+	// moves a chunk of the old table into the new one
+	private void helpMigrate(Tables<T> ts)
+	{
+		Table<T> old = ts.old;
+		int start = old.migrateCursor.getAndAdd(MIGRATE_CHUNK);
+		if (start >= old.size)
+			return;
+		int end = Math.min(start + MIGRATE_CHUNK, old.size);
+		numMoves.incrementAndGet();
+		for (int i=start; i<end; i++)
+			migrateSlot(old, i, ts.cur);
+		if (old.migrated.addAndGet(end - start) == old.size)
+		{
+			tables.compareAndSet(ts, new Tables<T>(ts.cur, null));
+			numMoves.incrementAndGet();
+		}
+	}
+
+	private void migrateSlot(Table<T> from, int i, Table<T> to)
+	{
+		from.claim(i);
+		long k = from.keys.get(i);
+		if (k != MovedHash)
+		{
+			if (k != NullHash)
+			{
+				// a newer entry in the bigger table wins
+				numKeys.decrementAndGet();
+				if (insertInto(to, from.hashes.get(i), k, from.entries.get(i), from.visits.get(i), false) == null)
+					totalFailedInserts++;
+			}
+			// empty slots are marked too, so late inserts into this table go elsewhere
+			from.keys.set(i, MovedHash);
+			from.entries.set(i, null);
+		}
+		from.release(i);
+	}
+
+	/**
+	 * Moves everything over from the old table, if the table is growing.
+	 * capacity() and getEntryAtIndex() only see the current table.
+	 */
+	public void finishGrowing()
+	{
+		Tables<T> ts;
+		while ((ts = tables.get()).old != null)
+		{
+			helpMigrate(ts);
+			Thread.yield();
+		}
+	}
+
+	//
+
+	// bounded cull: the probe window for hash, plus the next chunk of a sweep around the table
+	private int cullWindow(Table<T> t, long hash, int nlog2)
+	{
+		int n = cullRange(t, t.index(hash), maxCollisions + 1, nlog2);
+		return n + cullRange(t, cullCursor.getAndAdd(CULL_CHUNK), CULL_CHUNK, nlog2);
+	}
+
+	private int cullRange(Table<T> t, int start, int count, int nlog2)
+	{
+		numMoves.incrementAndGet();
+		int n = 0;
+		for (int j=0; j<count; j++)
+		{
+			int i = (start + j) & t.mask;
+			if (t.visits.get(i) == 0)
+				continue;
+			t.claim(i);
+			long k = t.keys.get(i);
+			int v = t.visits.get(i) >>> nlog2;
+			t.visits.set(i, v);
+			T evicted = null;
+			if (v == 0 && k != NullHash && k != MovedHash)
+			{
+				evicted = t.entries.get(i);
+				t.keys.set(i, NullHash);
+				t.entries.set(i, null);
+				n++;
+			}
+			t.release(i);
+			if (evicted != null && evictionListener != null)
+				evictionListener.evicted(k, evicted);
+		}
+		numKeys.addAndGet(-n);
+		totalCulls += n;
+		return n;
+	}
+
+	public int cullLeastVisitedEntries(int nlog2)
+	{
+		finishGrowing();
+		Table<T> t = tables.get().cur;
+		return cullRange(t, 0, t.size, nlog2);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[keys=" + numKeys + "/" + capacity() + ", inserts=" + totalInserts + ", failedInserts=" + totalFailedInserts + ", swaps="
+				+ totalSwaps + ", culls=" + totalCulls + ", retries=" + totalRetries + ", grows=" + totalGrows + "]";
+	}
+
+	// not thread-safe, like FastHash.clear(); keeps the current size
+	public void clear()
+	{
+		Table<T> t = tables.get().cur;
+		for (int i=0; i<t.size; i++)
+		{
+			t.keys.set(i, NullHash);
+			t.visits.set(i, 0);
+			t.entries.set(i, null);
+		}
+		tables.set(new Tables<T>(t, null));
+		numKeys.set(0);
+		resetStatistics();
+	}
+
+	public void resetStatistics()
+	{
+		this.totalFailedInserts = 0;
+		this.totalInserts = 0;
+		this.totalSwaps = 0;
+		this.totalCulls = 0;
+		this.totalGrows = 0;
+	}
+
+	public int countEntries()
+	{
+		Tables<T> ts = tables.get();
+		int n = 0;
+		for (Table<T> t = ts.cur; t != null; t = (t == ts.cur ? ts.old : null))
+			for (int i=0; i<t.size; i++)
+				if (t.entries.get(i) != null)
+					n++;
+		return n;
+	}
+
+	public int maxCollisions()
+	{
+		return maxCollisions;
+	}
+
+	public boolean containsEntry(long hash, long key)
+	{
+		Tables<T> ts = tables.get();
+		return entryIndex(ts.cur, hash, key) > 0 || (ts.old != null && entryIndex(ts.old, hash, key) > 0);
+	}
+
+	public int keyCount()
+	{
+		return numKeys.get();
+	}
+
+	public int capacity()
+	{
+		return tables.get().cur.size;
+	}
+
+	public T getEntryAtIndex(int i)
+	{
+		return tables.get().cur.entries.get(i);
+	}
+
+	public void addVisitedForEntryAtIndex(int i)
+	{
+		tables.get().cur.visits.incrementAndGet(i);
+	}
+
+}
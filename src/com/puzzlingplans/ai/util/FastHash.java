@@ -16,6 +16,11 @@ public class FastHash<T>
 	private int cullOrder;
 	
 	private volatile int numKeys;
+
+	// Robin Hood probing (see setRobinHood()), null for plain linear probing
+	private byte[] dists;			// how far each entry is from its home slot
+	private int maxDist;
+	private volatile int moveSeq;	// odd while entries are shifting, see getEntryAtRobinHood()
 	
 	public int totalInserts;
 	public int totalFailedInserts;
@@ -68,6 +73,21 @@ public class FastHash<T>
 	{
 		this.cullOrder = order;
 	}
+
+	/**
+	 * Switches an empty table to Robin Hood probing: entries are kept in
+	 * home-slot order within a run, so a lookup stops as soon as it passes
+	 * entries closer to home than itself, and probe lengths stay short and
+	 * even at load factors of 0.9 and up. Costs a byte per slot, and
+	 * replaces the swapping of busy entries toward their home slot.
+	 */
+	public void setRobinHood(boolean enable)
+	{
+		assert(numKeys == 0);
+		this.dists = enable ? new byte[size] : null;
+		// misses stop early, so we can afford longer runs than linear probing
+		this.maxDist = Math.min(maxCollisions * 2, Byte.MAX_VALUE);
+	}
 	
 	public int entryIndex(long hash, long key)
 	{
@@ -93,6 +113,8 @@ public class FastHash<T>
 
 	public T getEntryAt(long hash, long key)
 	{
+		if (dists != null)
+			return getEntryAtRobinHood(hash, key, true);
 		int i = entryIndex(hash, key);
 		if (i > 0)
 		{
@@ -144,6 +166,8 @@ public class FastHash<T>
 
 	public T insertEntry(long hash, long key, T entry)
 	{
+		if (dists != null)
+			return insertEntryRobinHood(hash, key, entry);
 		int i = entryIndex(hash, key);
 		synchronized (this)
 		{
@@ -176,6 +200,167 @@ public class FastHash<T>
 		}
 	}
 
+	// ROBIN HOOD PROBING
+
+	// slot holding key, or -1
+	private int findRobinHood(long hash, long key)
+	{
+		int i = hashIndex(hash);
+		for (int d=0; d<=maxDist; d++)
+		{
+			long k = keys[i];
+			if (k == key)
+				return i;
+			// anything further along is closer to home than we'd be
+			if (k == NullHash || dists[i] < d)
+				return -1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	// Writers bump moveSeq before and after shifting entries, and a lookup
+	// retries unless it saw the same even value on both sides. The plain reads
+	// in between aren't ordered before the second read of moveSeq under the
+	// Java memory model, so that alone is only a seqlock on x86; a miss is
+	// confirmed under the lock (inserts and deletes hold it) before it counts.
+	// A hit still relies on the key check, as in the linear probing path.
+	private T getEntryAtRobinHood(long hash, long key, boolean visit)
+	{
+		while (true)
+		{
+			int seq = moveSeq;
+			if ((seq & 1) != 0)
+				continue;
+			int i = findRobinHood(hash, key);
+			if (i < 0)
+				return getEntryAtRobinHoodLocked(hash, key, visit);
+			T entry = entries[i];
+			if (moveSeq == seq && keys[i] == key)
+			{
+				if (visit)
+					visits[i]++;
+				return entry;
+			}
+			totalRetries++;
+		}
+	}
+
+	private synchronized T getEntryAtRobinHoodLocked(long hash, long key, boolean visit)
+	{
+		int i = findRobinHood(hash, key);
+		if (i < 0)
+			return null;
+		totalRetries++;
+		if (visit)
+			visits[i]++;
+		return entries[i];
+	}
+
+	private synchronized T insertEntryRobinHood(long hash, long key, T entry)
+	{
+		int i = findRobinHood(hash, key);
+		if (i >= 0)
+		{
+			totalInserts++;
+			entries[i] = entry;
+			visits[i] = 1;
+			return entry;
+		}
+		// our slot is the first one that's empty or closer to its home than we'd be
+		int j = hashIndex(hash);
+		int d = 0;
+		while (keys[j] != NullHash && dists[j] >= d)
+		{
+			j = (j + 1) & mask;
+			if (++d > maxDist)
+				return insertFailedRobinHood(hash, key, entry);
+		}
+		// everything from there to the next empty slot moves up one
+		int p = j;
+		while (keys[p] != NullHash)
+		{
+			if (dists[p] >= maxDist)
+				return insertFailedRobinHood(hash, key, entry);
+			p = (p + 1) & mask;
+			if (p == j)
+				return insertFailedRobinHood(hash, key, entry);
+		}
+		boolean shift = p != j;
+		if (shift)
+			moveSeq++;
+		while (p != j)
+		{
+			int q = (p - 1) & mask;
+			moveRobinHood(q, p, dists[q] + 1);
+			p = q;
+		}
+		keys[j] = ~key;
+		entries[j] = entry;
+		visits[j] = 1;
+		dists[j] = (byte) d;
+		keys[j] = key;
+		if (shift)
+			moveSeq++;
+		numKeys++;
+		totalInserts++;
+		return entry;
+	}
+
+	private T insertFailedRobinHood(long hash, long key, T entry)
+	{
+		// try to free up some room
+		if (cullOrder > 0 && cullLeastVisitedEntries(cullOrder) > 0)
+			return insertEntryRobinHood(hash, key, entry);
+		totalFailedInserts++;
+		return null;
+	}
+
+	private void moveRobinHood(int from, int to, int dist)
+	{
+		long k = keys[from];
+		keys[to] = ~k; // make sure we don't grab while modifying
+		entries[to] = entries[from];
+		visits[to] = visits[from];
+		dists[to] = (byte) dist;
+		keys[to] = k;
+	}
+
+	// removes the entry at slot i, pulling the rest of its run back toward home
+	private void deleteRobinHood(int i)
+	{
+		moveSeq++;
+		int next = (i + 1) & mask;
+		while (keys[next] != NullHash && dists[next] > 0)
+		{
+			moveRobinHood(next, i, dists[next] - 1);
+			i = next;
+			next = (next + 1) & mask;
+		}
+		keys[i] = NullHash;
+		entries[i] = null;
+		visits[i] = 0;
+		dists[i] = 0;
+		moveSeq++;
+	}
+
+	private int cullRobinHood(int nlog2)
+	{
+		for (int i=0; i<size; i++)
+			visits[i] >>>= nlog2;
+		int n = 0;
+		for (int i=0; i<size; i++)
+		{
+			// deleting pulls the next entry into this slot, so look again
+			while (keys[i] != NullHash && visits[i] == 0)
+			{
+				deleteRobinHood(i);
+				n++;
+			}
+		}
+		return n;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -185,6 +370,8 @@ public class FastHash<T>
 
 	public void clear()
 	{
+		if (dists != null)
+			Arrays.fill(dists, (byte) 0);
 		Arrays.fill(keys, NullHash);
 		Arrays.fill(visits, 0);
 		Arrays.fill(entries, null);
@@ -202,6 +389,13 @@ public class FastHash<T>
 
 	public synchronized int cullLeastVisitedEntries(int nlog2)
 	{
+		if (dists != null)
+		{
+			int n = cullRobinHood(nlog2);
+			this.numKeys -= n;
+			this.totalCulls += n;
+			return n;
+		}
 		int n = 0;
 		for (int i=0; i<size; i++)
 		{
@@ -234,6 +428,8 @@ public class FastHash<T>
 
 	public boolean containsEntry(long hash, long key)
 	{
+		if (dists != null)
+			return getEntryAtRobinHood(hash, key, false) != null;
 		return entryIndex(hash, key) > 0;
 	}
 
@@ -252,6 +448,11 @@ public class FastHash<T>
 		return entries[i];
 	}
 
+	public long getKeyAtIndex(int i)
+	{
+		return keys[i];
+	}
+
 	public void addVisitedForEntryAtIndex(int i)
 	{
 		visits[i]++;
@@ -1,5 +1,7 @@
 package com.puzzlingplans.ai.util;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 public class HammingSpaceIndex
 {
 	public static class Entry
@@ -9,6 +11,7 @@ public class HammingSpaceIndex
 		public double m2;
 		public float q;
 		public int nv;
+		Entry[] next; // next entry in the same bucket, for each chunk
 		
 		@Override
 		public String toString()
@@ -37,16 +40,59 @@ public class HammingSpaceIndex
 		}
 	}
 
+	// Multi-index hashing: each key is split into numChunks chunks, and every
+	// entry is chained into one bucket per chunk. Two keys within distance r
+	// must have some chunk within r/numChunks bits of each other, so a lookup
+	// only has to walk the buckets for chunk values that close to the key's.
+	// The chains are only pruned when a lookup finds an entry FastHash has culled.
+	// Rollout threads share an index, so new entries are pushed onto a bucket
+	// with CAS, and only dead entries are ever unlinked: a lookup racing with
+	// an unlink may walk a few extra dead entries, but never misses a live one.
+	// An entry only counts as dead if it's gone from its table while we hold
+	// the table's lock, since FastHash briefly hides entries it's swapping.
 	FastHash<Entry>[] tables;
+	AtomicReferenceArray<AtomicReferenceArray<Entry>[]> heads; // [level][chunk][bucket], allocated when a level is first used
+	private final int log2;
+	private final int numChunks;
+	private final int chunkBits;
 
 	public HammingSpaceIndex(int log2)
 	{
+		this(log2, 4);
+	}
+
+	public HammingSpaceIndex(int log2, int numChunks)
+	{
+		assert (numChunks >= 2 && 64 % numChunks == 0);
+		this.log2 = log2;
+		this.numChunks = numChunks;
+		this.chunkBits = 64 / numChunks;
 		tables = new FastHash[64];
 		for (int i = 0; i < tables.length; i++)
 		{
 			// TODO: resize levels dynamically?
 			tables[i] = new FastHash<Entry>(log2, 0.75f, 1);
 		}
+		heads = new AtomicReferenceArray<AtomicReferenceArray<Entry>[]>(64);
+	}
+
+	// chunk c is bits c, c+numChunks, c+2*numChunks... so masks that only
+	// use the low bits still spread over every chunk's buckets
+	private long chunk(long key, int c)
+	{
+		long k = key >>> c;
+		long v = 0;
+		for (int i = 0; i < chunkBits; i++)
+		{
+			v |= (k & 1) << i;
+			k >>>= numChunks;
+		}
+		return v;
+	}
+
+	private int bucket(long chunkValue)
+	{
+		return (int) ((chunkValue * 0x9E3779B97F4A7C15L) >>> (64 - log2));
 	}
 
 	public void add(long mask, float value, int index)
@@ -56,9 +102,11 @@ public class HammingSpaceIndex
 		Entry entry = tables[n].getEntryAt(mask, mask);
 		if (entry == null)
 		{
-			entry = new Entry();
-			entry.key = mask;
-			entry = tables[n].insertEntry(mask, mask, entry);
+			Entry newentry = new Entry();
+			newentry.key = mask;
+			entry = tables[n].insertEntry(mask, mask, newentry);
+			if (entry == newentry)
+				link(n, entry);
 		}
 		if (entry != null)
 		{
@@ -73,6 +121,35 @@ public class HammingSpaceIndex
 		}
 	}
 
+	private AtomicReferenceArray<Entry>[] levelHeads(int n)
+	{
+		AtomicReferenceArray<Entry>[] lheads = heads.get(n);
+		if (lheads == null)
+		{
+			lheads = new AtomicReferenceArray[numChunks];
+			for (int c = 0; c < numChunks; c++)
+				lheads[c] = new AtomicReferenceArray<Entry>(1 << log2);
+			if (!heads.compareAndSet(n, null, lheads))
+				lheads = heads.get(n);
+		}
+		return lheads;
+	}
+
+	private void link(int n, Entry entry)
+	{
+		AtomicReferenceArray<Entry>[] lheads = levelHeads(n);
+		entry.next = new Entry[numChunks];
+		for (int c = 0; c < numChunks; c++)
+		{
+			int b = bucket(chunk(entry.key, c));
+			Entry head;
+			do {
+				head = lheads[c].get(b);
+				entry.next[c] = head;
+			} while (!lheads[c].compareAndSet(b, head, entry));
+		}
+	}
+
 	public long getBestMovesFor(long key, int radius)
 	{
 		int n = BitUtils.countBits(key) - 1;
@@ -89,41 +166,127 @@ public class HammingSpaceIndex
 
 	private Entry getBestEntryFor(int n, long key, int maxdist)
 	{
-		if (n < 0 || n >= 64)
+		if (n < 0 || n >= 64 || heads.get(n) == null)
 			return null;
-		
-		FastHash<Entry> tbl = tables[n];
-		float bestscore = 0;
+
 		Entry bestentry = null;
-		int bestindex = -1;
-		int index = tbl.hashIndex(key);
-		int capacity = tbl.capacity();
-		for (int i = 0; i < capacity; i++)
+		int flips = maxdist / numChunks;
+		for (int c = 0; c < numChunks; c++)
+			bestentry = searchChunk(n, c, chunk(key, c), 0, flips, key, maxdist, bestentry);
+		if (bestentry != null)
+		{
+			FastHash<Entry> tbl = tables[n];
+			int index = tbl.entryIndex(bestentry.key, bestentry.key);
+			if (index > 0)
+				tbl.addVisitedForEntryAtIndex(index - 1);
+			//System.out.println(n + "\t" + bestentry);
+		}
+		return bestentry;
+	}
+
+	// walks the buckets for every chunk value within flips bits of value
+	private Entry searchChunk(int n, int c, long value, int fromBit, int flips, long key, int maxdist, Entry best)
+	{
+		best = searchBucket(n, c, value, key, maxdist, best);
+		if (flips > 0)
 		{
-			Entry entry = tbl.getEntryAtIndex(index);
-			if (entry != null && entry.good != 0 && entry.q > 0)
+			for (int b = fromBit; b < chunkBits; b++)
+				best = searchChunk(n, c, value ^ (1L << b), b + 1, flips - 1, key, maxdist, best);
+		}
+		return best;
+	}
+
+	private Entry searchBucket(int n, int c, long value, long key, int maxdist, Entry best)
+	{
+		FastHash<Entry> tbl = tables[n];
+		AtomicReferenceArray<Entry> lheads = heads.get(n)[c];
+		int b = bucket(value);
+		float bestscore = best != null ? score(best, key) : 0;
+		Entry prev = null;
+		Entry entry = lheads.get(b);
+		while (entry != null)
+		{
+			Entry next = entry.next[c];
+			if (!isLive(tbl, entry) && !isLiveLocked(tbl, entry))
 			{
-				int dist = BitUtils.countBits(entry.key ^ key);
-				if (dist <= maxdist)
+				// culled from the table, unlink it (if a new head was pushed, leave it for next time)
+				if (prev == null)
+					lheads.compareAndSet(b, entry, next);
+				else
+					prev.next[c] = next;
+			} else
+			{
+				if (entry.good != 0 && entry.q > 0 && BitUtils.countBits(entry.key ^ key) <= maxdist)
 				{
-					float score = (float) (entry.getScore() / (dist + 1));
+					float score = score(entry, key);
 					if (score > bestscore)
 					{
-						bestentry = entry;
+						best = entry;
 						bestscore = score;
-						bestindex = index;
 					}
 				}
+				prev = entry;
 			}
-			if (++index >= capacity)
-				index = 0;
+			entry = next;
+		}
+		return best;
+	}
+
+	private static float score(Entry entry, long key)
+	{
+		return (float) (entry.getScore() / (BitUtils.countBits(entry.key ^ key) + 1));
+	}
+
+	private static boolean isLive(FastHash<Entry> tbl, Entry entry)
+	{
+		int index = tbl.entryIndex(entry.key, entry.key);
+		return index > 0 && tbl.getEntryAtIndex(index - 1) == entry;
+	}
+
+	// inserts, swaps and culls all hold the table's lock
+	private static boolean isLiveLocked(FastHash<Entry> tbl, Entry entry)
+	{
+		synchronized (tbl)
+		{
+			return isLive(tbl, entry);
 		}
-		if (bestindex >= 0)
+	}
+
+	// live entries missing from any of their buckets (for testing, call when idle)
+	public int countUnlinkedEntries()
+	{
+		int n = 0;
+		for (int level = 0; level < tables.length; level++)
 		{
-			tbl.addVisitedForEntryAtIndex(bestindex);
-			//System.out.println(n + "\t" + bestentry);
+			FastHash<Entry> tbl = tables[level];
+			AtomicReferenceArray<Entry>[] lheads = heads.get(level);
+			for (int i = 0; i < tbl.capacity(); i++)
+			{
+				Entry entry = tbl.getEntryAtIndex(i);
+				if (entry == null || !isLive(tbl, entry))
+					continue;
+				for (int c = 0; c < numChunks; c++)
+				{
+					Entry e = lheads != null ? lheads[c].get(bucket(chunk(entry.key, c))) : null;
+					while (e != null && e != entry)
+						e = e.next[c];
+					if (e == null)
+					{
+						n++;
+						break;
+					}
+				}
+			}
 		}
-		return bestentry;
+		return n;
+	}
+
+	public int numSwaps()
+	{
+		int n = 0;
+		for (FastHash<Entry> tbl : tables)
+			n += tbl.totalSwaps;
+		return n;
 	}
 
 	// TODO: Log
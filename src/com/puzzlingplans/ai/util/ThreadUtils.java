@@ -62,6 +62,11 @@ public class ThreadUtils
 		return availableProcessors;
 	}
 
+	public static Future<?> submit(Runnable task)
+	{
+		return threadPool.submit(task);
+	}
+
 	public static void submitAndWait(Runnable[] tasks) throws ExecutionException, InterruptedException
 	{
 		Future<?>[] futures = new Future[tasks.length];
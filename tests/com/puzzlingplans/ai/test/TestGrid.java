@@ -131,6 +131,41 @@ public class TestGrid extends BaseTestCase {
 		assertEquals(-1, (int)igrid.get(0,0));
 	}
 	
+	public void testJournal()
+	{
+		HashKeepingGrid<Character> grid = new HashKeepingGrid<Character>(3, 3, ' ', 2, 4, 0)
+		{
+			@Override
+			public int getPieceTypeIndex(Character t)
+			{
+				return t.charValue() & 3;
+			}
+		};
+		grid.set(4, 'a', 0);
+		long hash = grid.hash();
+		int mark1 = grid.startJournal();
+		grid.set(0, 'b', 1);
+		grid.set(4, ' ', -1);
+		long hash2 = grid.hash();
+		int mark2 = grid.startJournal();
+		grid.set(0, 'c', 0);
+		grid.set(8, 'c', 1);
+		grid.revertJournal(mark2);
+		assertEquals(hash2, grid.hash());
+		assertEquals('b', (char)grid.get(0));
+		assertEquals(1, grid.getColor(0));
+		assertEquals(-1, grid.getColor(8));
+		grid.revertJournal(mark1);
+		assertEquals(hash, grid.hash());
+		assertEquals(' ', (char)grid.get(0));
+		assertEquals('a', (char)grid.get(4));
+		assertEquals("{4}", grid.getOccupiedFor(0).toString());
+		assertEquals("{}", grid.getOccupiedFor(1).toString());
+		// not recording anymore
+		grid.set(0, 'b', 1);
+		assertEquals(0, grid.startJournal());
+	}
+	
 	public void testZobrist()
 	{
 		HashKeepingGrid<Character> grid = new HashKeepingGrid<Character>(10, 10, ' ', 2, 4, 0)
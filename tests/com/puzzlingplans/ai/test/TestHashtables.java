@@ -1,12 +1,16 @@
 package com.puzzlingplans.ai.test;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.puzzlingplans.ai.GameState;
 import com.puzzlingplans.ai.search.MoveMaskHash;
+import com.puzzlingplans.ai.search.PackedTranspositionTable;
 import com.puzzlingplans.ai.search.TranspositionTable;
 import com.puzzlingplans.ai.search.TranspositionTable.Entry;
 import com.puzzlingplans.ai.search.TranspositionTable.EntryType;
 import com.puzzlingplans.ai.util.BitUtils;
+import com.puzzlingplans.ai.util.ConcurrentFastHash;
 import com.puzzlingplans.ai.util.FastBitSet;
 import com.puzzlingplans.ai.util.FastHash;
 import com.puzzlingplans.ai.util.HammingSpaceIndex;
@@ -41,9 +45,74 @@ public class TestHashtables extends BaseTestCase
 		assertEquals(2, tt.countEntries());
 	}
 
+	public void testPackedTranspositionTable()
+	{
+		PackedTranspositionTable tt = new PackedTranspositionTable(4);
+		assertEquals(16, tt.capacity());
+		tt.newSearch();
+		assertEquals(0, tt.probe(1, 2));
+		tt.store(1, 2, 3, -4, EntryType.LOWER, 5);
+		long data = tt.probe(1, 2);
+		assertEquals(3, PackedTranspositionTable.getLevel(data));
+		assertEquals(-4, PackedTranspositionTable.getValue(data));
+		assertEquals(EntryType.LOWER, PackedTranspositionTable.getType(data));
+		assertEquals(5, PackedTranspositionTable.getBestMove(data));
+		assertEquals(0, tt.probe(1, 3));
+		assertEquals(0, tt.probe(2, 2));
+		// shallower entry goes to the always-replace slot
+		tt.store(1, 3, 1, 10, EntryType.EXACT, -1);
+		assertEquals(-1, PackedTranspositionTable.getBestMove(tt.probe(1, 3)));
+		assertEquals(3, PackedTranspositionTable.getLevel(tt.probe(1, 2)));
+		// ... and is replaced by the next one
+		tt.store(1, 4, 2, 20, EntryType.UPPER, 63);
+		assertEquals(0, tt.probe(1, 3));
+		assertEquals(63, PackedTranspositionTable.getBestMove(tt.probe(1, 4)));
+		// deeper entry takes the first slot and pushes the old one down
+		tt.store(1, 5, 9, GameState.SCORE_MIN, EntryType.EXACT, 0);
+		assertEquals(GameState.SCORE_MIN, PackedTranspositionTable.getValue(tt.probe(1, 5)));
+		assertEquals(3, PackedTranspositionTable.getLevel(tt.probe(1, 2)));
+		assertEquals(0, tt.probe(1, 4));
+		// entries from an older search give way to anything
+		tt.newSearch();
+		tt.store(1, 6, 0, 0, EntryType.EXACT, -1);
+		assertTrue(tt.probe(1, 6) != 0);
+		assertEquals(9, PackedTranspositionTable.getLevel(tt.probe(1, 5)));
+		assertEquals(0, tt.probe(1, 2));
+		assertEquals(2, tt.countEntries());
+		tt.clear();
+		assertEquals(0, tt.countEntries());
+	}
+
+	public void testPackedTranspositionTableThreaded() throws Throwable
+	{
+		final int n = 16;
+		final PackedTranspositionTable tt = new PackedTranspositionTable(n);
+		benchmarkMultiThreaded("packedTransTable", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i=0; i < (4<<n); i++)
+				{
+					long k1 = i * 0xffffl;
+					long k2 = -i;
+					tt.store(k1, k2, i & 0xfff, i, EntryType.EXACT, i & 63);
+					long data = tt.probe(k1, k2);
+					if (data != 0 && PackedTranspositionTable.getValue(data) != i)
+					{
+						fail(this + " failed @ " + i + ": " + PackedTranspositionTable.toString(data));
+					}
+				}
+			}
+		});
+		System.out.println(tt);
+	}
+
 	public void testMoveMaskHash()
 	{
 		MoveMaskHash mmh = new MoveMaskHash();
+		// cheap enough to make one per playout
+		assertTrue(mmh.capacity() <= 1024);
 		mmh.addIndex(0, 0);
 		mmh.addIndex(0, 1);
 		assertEquals(0, mmh.getForMask(0));
@@ -66,6 +135,45 @@ public class TestHashtables extends BaseTestCase
 		assertEquals(0, mmh.getForMask(7));
 	}
 	
+	public void testMoveMaskHashBounded()
+	{
+		MoveMaskHash mmh = new MoveMaskHash(4);
+		assertEquals(16, mmh.capacity());
+		for (int i=1; i<=1000; i++)
+			mmh.addIndex(i << 1, 1);
+		assertTrue(mmh.countEntries() <= 16);
+		// the last key added is always there
+		assertEquals(2, mmh.getForMask(1000 << 1));
+		mmh.removeIndex(1000 << 1, 1);
+		assertEquals(0, mmh.getForMask(1000 << 1));
+	}
+
+	public void testMoveMaskHashThreaded() throws Throwable
+	{
+		final int n = 12;
+		final MoveMaskHash mmh = new MoveMaskHash(n + 1);
+		benchmarkMultiThreaded("moveMaskHash", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int j=0; j<64; j++)
+				{
+					for (long i=1; i < (1<<n); i++)
+					{
+						long key = (i << 6) | 63;
+						mmh.addIndex(key, j & 3);
+						long m = mmh.getForMask(key);
+						if ((m & ~15) != 0)
+							fail(this + " bad mask for " + key + ": " + m);
+					}
+				}
+			}
+		});
+		for (long i=1; i < (1<<n); i++)
+			assertEquals(15, mmh.getForMask((i << 6) | 63));
+	}
+
 	public void testPerformance()
 	{
 		final int n = 18;
@@ -125,6 +233,179 @@ public class TestHashtables extends BaseTestCase
 		assertTrue(tt.keyCount() < 1<<n);
 	}
 	
+	public void testConcurrentFastHash() throws Throwable
+	{
+		final int n = 16;
+		final ConcurrentFastHash<Long> h = new ConcurrentFastHash<Long>(n+2, 0.75f, 0);
+		benchmarkMultiThreaded("concurrentFastHash", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (long i=0; i < (1<<n); i++)
+				{
+					long k1 = i * 0xffffl;
+					long k2 = -i-1;
+					Long entry = h.getEntryAt(k1, k2);
+					if (entry == null)
+						entry = h.insertIfAbsent(k1, k2, i);
+					assertNotNull(entry);
+					assertEquals(i, entry.longValue());
+					assertEquals(i, h.getEntryAt(k1, k2).longValue());
+				}
+			}
+		});
+		System.out.println(h);
+		// every thread inserted the same keys, none of them twice
+		assertEquals(1<<n, h.keyCount());
+		assertEquals(1<<n, h.countEntries());
+		assertEquals(0, h.totalFailedInserts);
+	}
+
+	public void testConcurrentFastHashGrow() throws Throwable
+	{
+		final int n = 16;
+		final ConcurrentFastHash<Long> h = new ConcurrentFastHash<Long>(8, 0.75f, 0);
+		h.setGrowLimit(n+1);
+		benchmarkMultiThreaded("concurrentFastHashGrow", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (long i=0; i < (1<<n); i++)
+				{
+					long k1 = i * 0xffffl;
+					long k2 = -i-1;
+					Long entry = h.insertIfAbsent(k1, k2, i);
+					assertNotNull(entry);
+					assertEquals(i, entry.longValue());
+					// look up an older one, which may be mid-migration
+					long j = i/2;
+					assertEquals(j, h.getEntryAt(j * 0xffffl, -j-1).longValue());
+				}
+			}
+		});
+		System.out.println(h);
+		assertTrue(h.totalGrows > 0);
+		assertEquals(1<<(n+1), h.capacity());
+		h.finishGrowing();
+		assertEquals(1<<n, h.keyCount());
+		assertEquals(1<<n, h.countEntries());
+		for (long i=0; i < (1<<n); i++)
+			assertEquals(i, h.getEntryAt(i * 0xffffl, -i-1).longValue());
+	}
+
+	public void testConcurrentFastHashCull()
+	{
+		ConcurrentFastHash<Integer> h = new ConcurrentFastHash<Integer>(12, 0.95f, 1);
+		Random rnd = new RandomXorshift128();
+		for (int i=1; i<(1<<16); i++)
+		{
+			int x = rnd.nextInt(i) + 1;
+			if (h.getEntryAt(x, x) == null)
+				assertNotNull(h.insertEntry(x, x, x));
+		}
+		System.out.println(h);
+		// culls only sweep a few slots at a time, but still keep room for inserts
+		assertTrue(h.totalCulls > 0);
+		assertTrue(h.keyCount() <= h.capacity());
+		assertEquals(h.keyCount(), h.countEntries());
+	}
+
+	public void testRobinHood()
+	{
+		FastHash<Integer> fh = new FastHash<Integer>(10, 0.95f, 0);
+		fh.setRobinHood(true);
+		Random rnd = new RandomXorshift128();
+		int[] keys = new int[900];
+		for (int i=0; i<keys.length; i++)
+		{
+			keys[i] = rnd.nextInt() | 1;
+			assertNotNull(fh.insertEntry(keys[i], keys[i], i));
+		}
+		for (int i=0; i<keys.length; i++)
+			assertEquals(i, fh.getEntryAt(keys[i], keys[i]).intValue());
+		assertNull(fh.getEntryAt(2, 2));
+		// the least visited entries go, the rest shift back and can still be found
+		for (int i=0; i<keys.length; i+=2)
+		{
+			fh.getEntryAt(keys[i], keys[i]);
+			fh.getEntryAt(keys[i], keys[i]);
+		}
+		assertEquals(keys.length/2, fh.cullLeastVisitedEntries(2));
+		for (int i=0; i<keys.length; i++)
+			assertEquals(i % 2 == 0, fh.containsEntry(keys[i], keys[i]));
+		assertEquals(keys.length/2, fh.countEntries());
+	}
+
+	public void testRobinHoodThreaded() throws Throwable
+	{
+		final FastHash<Integer> fh = new FastHash<Integer>(12, 0.95f, 0);
+		fh.setRobinHood(true);
+		final int[] keys = new int[2000];
+		Random rnd = new RandomXorshift128();
+		for (int i=0; i<keys.length; i++)
+		{
+			keys[i] = (rnd.nextInt() << 1) | 1;
+			assertNotNull(fh.insertEntry(keys[i], keys[i], i));
+		}
+		final AtomicInteger next = new AtomicInteger();
+		benchmarkMultiThreaded("robinHood", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i=0; i<keys.length; i++)
+				{
+					// even keys shift the runs the odd ones are in
+					int x = next.incrementAndGet() * 0x9E3779B9 << 1;
+					fh.insertEntry(x, x, -1);
+					for (int j=i; j<i+16; j++)
+					{
+						int k = j % keys.length;
+						Integer entry = fh.getEntryAt(keys[k], keys[k]);
+						if (entry == null || entry != k)
+							fail(this + " lost " + keys[k] + ": " + entry);
+					}
+				}
+			}
+		});
+		System.out.println(fh);
+		assertEquals(fh.keyCount(), fh.countEntries());
+	}
+
+	public void testProbingBenchmark()
+	{
+		final int n = 16;
+		for (final boolean robinHood : new boolean[] { false, true })
+		{
+			final FastHash<Integer> fh = new FastHash<Integer>(n, 0.95f, 0);
+			fh.setRobinHood(robinHood);
+			String name = robinHood ? "robinHood" : "linear";
+			Random rnd = new RandomXorshift128(0);
+			// fill to 90%
+			for (int i=0; i < (1<<n)*9/10; i++)
+			{
+				int x = rnd.nextInt() | 1;
+				fh.insertEntry(x, x, i);
+			}
+			System.out.println(name + ": " + fh + ", " + (fh.capacity() * (8+4+4 + (robinHood?1:0)) >> 10) + " KB");
+			benchmark(name + " misses", 1<<20, new Runnable()
+			{
+				int i;
+				@Override
+				public void run()
+				{
+					// even keys are never inserted
+					fh.getEntryAt(i, i);
+					i += 2;
+				}
+			});
+			if (robinHood)
+				assertEquals(0, fh.totalFailedInserts);
+		}
+	}
+
 	public void testLRU()
 	{
 		Random rnd = new RandomXorshift128();
@@ -172,7 +453,109 @@ public class TestHashtables extends BaseTestCase
 		hsi.add(0x1111111, 0.5f, 8);
 		assertEquals(0x100, hsi.getBestMovesFor(0x1113111, r));
 	}
+
+	public void testHammingSpaceIndexRadius()
+	{
+		Random rnd = new RandomXorshift128(0);
+		int r = 5; // more than one bit per chunk, so neighbouring chunk values get searched
+		HammingSpaceIndex hsi = new HammingSpaceIndex(12);
+		long[] keys = new long[2000];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = rnd.nextLong();
+			hsi.add(keys[i], 0.5f, i & 63);
+			hsi.add(keys[i], 0.5f, i & 63);
+		}
+		long t1 = System.nanoTime();
+		int found = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			// flip r bits, half set and half clear, so the popcount stays close
+			long key = keys[i];
+			for (int j = 0; j < r; j++)
+				key ^= 1L << BitUtils.choose_bit(j % 2 == 0 ? key : ~key, rnd);
+			if (BitUtils.countBits(key ^ keys[i]) <= r && hsi.getBestMovesFor(key, r) != 0)
+				found++;
+		}
+		long t2 = System.nanoTime();
+		System.out.println(found + "/" + keys.length + " found, " + (t2 - t1) / keys.length + " ns per lookup");
+		assertEquals(keys.length, found);
+
+		// nothing is returned past the radius
+		HammingSpaceIndex one = new HammingSpaceIndex(8);
+		one.add(0xffff, 0.5f, 1);
+		one.add(0xffff, 0.5f, 1);
+		assertEquals(2, one.getBestMovesFor(0xfff0 | 0x30000, 6));
+		assertEquals(0, one.getBestMovesFor(0xfff0 | 0x30000, 5));
+	}
 	
+	public void testHammingSpaceIndexThreaded() throws Throwable
+	{
+		final HammingSpaceIndex hsi = new HammingSpaceIndex(12);
+		final long[] keys = new long[2000];
+		Random rnd = new RandomXorshift128(0);
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = rnd.nextLong();
+		final AtomicInteger nextThread = new AtomicInteger();
+		benchmarkMultiThreaded("hammingSpaceIndex", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// each thread adds the keys in a different order, looking up others as it goes
+				int t = nextThread.getAndIncrement();
+				for (int j = 0; j < keys.length; j++)
+				{
+					int i = (j * (t * 2 + 1) + t * 100) % keys.length;
+					hsi.add(keys[i], 0.5f, i & 63);
+					hsi.getBestMovesFor(keys[(i + 1) % keys.length], 4);
+				}
+			}
+		});
+		// no entry's links were lost
+		for (int i = 0; i < keys.length; i++)
+			assertEquals(1L << (i & 63), hsi.getBestMovesFor(keys[i], 0));
+	}
+
+	public void testHammingSpaceIndexSwaps() throws Throwable
+	{
+		// every key lands in the same slot of one small table, so the busy
+		// ones get swapped toward home while lookups walk their buckets
+		final HammingSpaceIndex hsi = new HammingSpaceIndex(6);
+		final long[] keys = new long[16];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = 1 | (1L << (8 + i)) | (1L << (24 + (i & 7))) | (1L << (40 + (i >> 3)));
+		for (int i = 0; i < keys.length; i++)
+			hsi.add(keys[i], 0.5f, i);
+		final AtomicInteger nextThread = new AtomicInteger();
+		benchmarkMultiThreaded("hammingSpaceIndexSwaps", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				int t = nextThread.getAndIncrement();
+				Random rnd = new RandomXorshift128(t);
+				for (int j = 0; j < 200000; j++)
+				{
+					int i = rnd.nextInt(keys.length);
+					if ((t & 1) == 0)
+					{
+						// each busy key gets three times the visits of the one
+						// before it, so it ends up swapped into the home slot
+						if (rnd.nextInt(10) != 0)
+							i = keys.length - 1 - BitUtils.highSetBit(j + 1) / 2;
+						hsi.add(keys[i], 0.5f, i);
+					} else
+						hsi.getBestMovesFor(keys[i], 0);
+				}
+			}
+		});
+		assertTrue(hsi.numSwaps() > 0);
+		assertEquals(0, hsi.countUnlinkedEntries());
+		for (int i = 0; i < keys.length; i++)
+			assertEquals(1L << i, hsi.getBestMovesFor(keys[i], 0));
+	}
+
 	public void testFastBitSet()
 	{
 		for (int s=2; s<=256; s++)
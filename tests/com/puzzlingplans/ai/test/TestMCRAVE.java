@@ -1,6 +1,9 @@
 package com.puzzlingplans.ai.test;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.textui.TestRunner;
 
@@ -23,6 +26,8 @@ import com.puzzlingplans.ai.games.go.Go7x7;
 import com.puzzlingplans.ai.search.AIDecider;
 import com.puzzlingplans.ai.search.MCRAVE;
 import com.puzzlingplans.ai.search.MCRAVE.Sim;
+import com.puzzlingplans.ai.search.MCRAVE.TreeNode;
+import com.puzzlingplans.ai.search.OffHeapNodeTable;
 import com.puzzlingplans.ai.util.HammingSpaceIndex;
 import com.puzzlingplans.ai.util.RandomXorshift128;
 
@@ -216,6 +221,237 @@ public class TestMCRAVE extends BaseTestCase
 		doMCRAVE(game, 100, 10000, 8, -1);
 	}
 
+	public void testOffHeapNodes() throws MoveFailedException, IOException
+	{
+		// a tiny on-heap table, so most of the tree has to live off-heap
+		MCRAVE mcrave = new MCRAVE(8);
+		OffHeapNodeTable offheap = new OffHeapNodeTable(14, 9);
+		mcrave.setOffHeapNodes(offheap);
+		TicTacToe state = new TicTacToe();
+		doMCRAVE(mcrave, state, 10, 3000, 0);
+		assertTrue(offheap.keyCount() > 0);
+		assertTrue(offheap.totalLoads > 0);
+
+		// nodes survive in a mapped file after it's closed
+		File file = File.createTempFile("nodes", ".bin");
+		file.deleteOnExit();
+		OffHeapNodeTable mapped = new OffHeapNodeTable(10, 9, file);
+		int n = 0;
+		for (int i = 0; i < mcrave.getNodes().capacity(); i++)
+		{
+			TreeNode node = mcrave.getNodes().getEntryAtIndex(i);
+			if (node != null && mapped.put(~node.getKey(), node))
+				n++;
+		}
+		assertTrue(n > 0);
+		mapped.close();
+		mapped = new OffHeapNodeTable(10, 9, file);
+		assertEquals(n, mapped.keyCount());
+		for (int i = 0; i < mcrave.getNodes().capacity(); i++)
+		{
+			TreeNode node = mcrave.getNodes().getEntryAtIndex(i);
+			TreeNode copy = node != null ? mapped.get(node.getKey(), ~node.getKey()) : null;
+			if (copy != null)
+			{
+				assertEquals(node.toString(), copy.toString());
+				for (int a = 0; a < node.getNumActions(); a++)
+					assertEquals(node.actionToString(a), copy.actionToString(a));
+			}
+		}
+		mapped.close();
+		// records laid out for another table size aren't read back as nodes
+		try
+		{
+			new OffHeapNodeTable(10, 4, file);
+			fail("opened with a different maxActions");
+		} catch (IOException e)
+		{
+			// expected
+		}
+		try
+		{
+			new OffHeapNodeTable(11, 9, file);
+			fail("opened with a different size");
+		} catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	// nor when an update for a move outside the node's mask grows its stats
+	public void testConcurrentStatsGrow() throws Throwable
+	{
+		final TreeNode node = new TreeNode(1, 1, 0);
+		final int numThreads = 8;
+		final int numIters = 1 << 14;
+		benchmarkMultiThreaded("growStats", numThreads, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < numIters; i++)
+					node.addRootOutcome((i * 7) & 63, 1);
+			}
+		});
+		int total = 0;
+		for (int a = 0; a < node.getNumActions(); a++)
+		{
+			total += node.getActionVisits(a);
+			if (node.hasAction(a))
+				assertEquals(1.0f, node.getWinRate(a));
+		}
+		assertEquals(64, node.getNumActions());
+		assertEquals(numThreads * numIters, total);
+	}
+
+	public void testOffHeapNodesThreaded() throws Throwable
+	{
+		final OffHeapNodeTable offheap = new OffHeapNodeTable(14, 4);
+		final AtomicInteger nextThread = new AtomicInteger();
+		benchmarkMultiThreaded("offHeapNodes", 8, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long t = nextThread.getAndIncrement();
+				for (long i = 1; i <= 1000; i++)
+				{
+					// neighbouring keys, so threads share lock ranges and probe windows
+					long key = i * 8 + t;
+					TreeNode node = new TreeNode(key, 15, 1);
+					node.addRootOutcome((int) (i & 3), 1);
+					offheap.put(~key, node);
+					TreeNode copy = offheap.get(key, ~key);
+					if (copy != null && (copy.getKey() != key || copy.getActionVisits((int) (i & 3)) != 1))
+						fail(this + " bad copy of " + key + ": " + copy);
+					if ((i & 1) == 0 && copy != null)
+						offheap.remove(key, ~key, copy.getNumVisits());
+				}
+			}
+		});
+		System.out.println(offheap);
+		assertTrue(offheap.keyCount() > 0);
+		assertEquals(offheap.countEntries(), offheap.keyCount());
+	}
+
+	// many threads backpropagating into the same nodes mustn't lose any counts
+	public void testConcurrentStats() throws InterruptedException
+	{
+		final MCRAVE mcrave = new MCRAVE(16);
+		final int numThreads = 8;
+		final int numIters = 5000;
+		final Sim[] sims = new Sim[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++)
+		{
+			final Sim sim = sims[t] = mcrave.newSimulator(new TicTacToe(), 10, new RandomXorshift128(t + 1));
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						sim.iterate(numIters);
+					} catch (MoveFailedException e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		int played = 0;
+		for (Sim sim : sims)
+			played += sim.stats.numGamesPlayed;
+		assertEquals(numThreads * numIters, played);
+
+		// the root is the one node at the lowest level
+		TreeNode root = null;
+		for (int i = 0; i < mcrave.getNodes().capacity(); i++)
+		{
+			TreeNode node = mcrave.getNodes().getEntryAtIndex(i);
+			if (node != null && (root == null || node.getLevel() < root.getLevel()))
+				root = node;
+		}
+		System.out.println(mcrave + " root " + root);
+		int rootActionVisits = 0;
+		for (int a = 0; a < root.getNumActions(); a++)
+			rootActionVisits += root.getActionVisits(a);
+		assertEquals(played, rootActionVisits);
+		assertEquals(played + 1, root.getNumVisits());
+	}
+
+	public void testSimulatorPool() throws MoveFailedException, InterruptedException, ExecutionException
+	{
+		MCRAVE mcrave = new MCRAVE(16, 10, 2000);
+		mcrave.useMultipleThreads = false;
+		TicTacToe game = new TicTacToe();
+		Sim[] first = mcrave.acquireSimulators(1, game, 10);
+		mcrave.releaseSimulators(first);
+		// every solve() should reuse the same simulator
+		int turns = 0;
+		try
+		{
+			while (true)
+			{
+				AIDecider solver = mcrave.newSolver(game);
+				Line<?> move = solver.solve();
+				// stats start over with each solve()
+				assertTrue(solver.getLastSolveIterations() > 2000 && solver.getLastSolveIterations() < 4000);
+				game.playTurn(new ReplayDecider(move));
+				game.dump();
+				turns++;
+			}
+		} catch (GameOverException goe)
+		{
+			// solve() throws on the last move
+		}
+		assertTrue(turns >= 4);
+		Sim[] again = mcrave.acquireSimulators(1, game, 10);
+		assertSame(first[0], again[0]);
+		assertTrue(again[0].exploration);
+		assertEquals(0, again[0].stats.numGamesPlayed);
+	}
+
+	public void testGenerationalAging() throws MoveFailedException
+	{
+		MCRAVE mcrave = new MCRAVE(16);
+		Sim sim = mcrave.newSimulator(new TicTacToe(), 10, new RandomXorshift128(0));
+		sim.iterate(1000);
+		TreeNode root = null;
+		for (int i = 0; i < mcrave.getNodes().capacity(); i++)
+		{
+			TreeNode node = mcrave.getNodes().getEntryAtIndex(i);
+			if (node != null && (root == null || node.getLevel() < root.getLevel()))
+				root = node;
+		}
+		assertEquals(1001, root.getNumVisits());
+		float[] winRates = new float[root.getNumActions()];
+		for (int a = 0; a < winRates.length; a++)
+			winRates[a] = root.getWinRate(a);
+
+		// counts are only reset once a simulation reaches the node
+		mcrave.resetVisitCounts();
+		assertEquals(1001, root.getNumVisits());
+		sim.iterate(1);
+		assertEquals(2, root.getNumVisits());
+		int total = 0;
+		for (int a = 0; a < winRates.length; a++)
+		{
+			int n = root.getActionVisits(a);
+			assertTrue(n == 1 || n == 2);
+			total += n;
+			if (n == 1)
+				assertEquals(winRates[a], root.getWinRate(a));
+		}
+		assertEquals(winRates.length + 1, total);
+	}
+
 	public void testGo() throws MoveFailedException
 	{
 		Go state = new Go(9, 2);
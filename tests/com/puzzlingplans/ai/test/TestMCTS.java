@@ -14,9 +14,11 @@ import com.puzzlingplans.ai.games.TicTacToe;
 import com.puzzlingplans.ai.games.MNKGame.Piece;
 import com.puzzlingplans.ai.games.chess.Chess;
 import com.puzzlingplans.ai.games.go.Go;
+import com.puzzlingplans.ai.search.AIDecider;
 import com.puzzlingplans.ai.search.MCTS;
 import com.puzzlingplans.ai.search.MCTS.Node;
 import com.puzzlingplans.ai.search.MCTS.Option;
+import com.puzzlingplans.ai.util.FastHash;
 import com.puzzlingplans.ai.util.MiscUtils;
 import com.puzzlingplans.ai.util.RandomXorshift128;
 
@@ -129,6 +131,182 @@ public class TestMCTS extends BaseTestCase
 		assertEquals(9, node.getLevel());
 	}
 
+	public void testTicTacToeTreeParallel() throws InterruptedException, ExecutionException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.setParallelism(MCTS.Parallelism.TreeParallel);
+		mcts.iterateMultiThreaded(state, 200000, 60);
+		System.out.println(mcts);
+		Node root = mcts.getRoot();
+		// every simulation passes through exactly one child of the root
+		int total = 0;
+		for (Node child : root.getAllChildren())
+			total += child.numVisits();
+		assertEquals(root.numVisits(), total);
+		assertEquals(":4:", mcts.getBestPath().getMoveAtDepth(1)+"");
+	}
+
+	public void testTicTacToeBatchedBackprop() throws InterruptedException, ExecutionException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.setParallelism(MCTS.Parallelism.TreeParallel);
+		mcts.setBackpropBatchSize(16);
+		mcts.iterateMultiThreaded(state, 200000, 60);
+		System.out.println(mcts);
+		Node root = mcts.getRoot();
+		// every buffered result was applied by the end of the search
+		int total = 0;
+		for (Node child : root.getAllChildren())
+			total += child.numVisits();
+		assertEquals(root.numVisits(), total);
+		assertTrue(root.numVisits() > 100000);
+		assertEquals(":4:", mcts.getBestPath().getMoveAtDepth(1)+"");
+	}
+
+	public void testTicTacToeRootParallel() throws InterruptedException, ExecutionException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.setParallelism(MCTS.Parallelism.RootParallel);
+		mcts.setRootMergeInterval(100);
+		mcts.iterateMultiThreaded(state, 200000, 60);
+		System.out.println(mcts);
+		Node root = mcts.getRoot();
+		// the merged root has the plays of every thread's tree
+		int total = 0;
+		for (Node child : root.getAllChildren())
+			total += child.numVisits();
+		assertEquals(root.numVisits(), total);
+		assertTrue(root.numVisits() > 100000);
+		assertEquals(":4:", mcts.getBestPath().getMoveAtDepth(1)+"");
+		assertTrue(mcts.getBestPath().isCompletePath());
+	}
+
+	public void testTicTacToeTranspositions() throws InterruptedException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS tree = new MCTS(10+1);
+		tree.iterate(state, 100000);
+		MCTS dag = new MCTS(10+1);
+		dag.setTranspositionTableSize(16);
+		dag.iterate(state, 100000);
+		System.out.println(tree);
+		System.out.println(dag);
+		// move orders reaching the same board share a node, so every position fits in the budget
+		assertTrue(dag.getNodeCount() < tree.getNodeCount() / 4);
+		assertTrue(dag.getRoot().isSolved());
+		// the reported path must still be playable
+		int[] path = dag.getBestPath().getIndices();
+		long occupied = 0;
+		for (int i=0; i<path.length; i++)
+		{
+			assertTrue(((1L<<path[i]) & occupied) == 0);
+			occupied |= 1L<<path[i];
+		}
+	}
+
+	public void testBestPathThroughTranspositions() throws InterruptedException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS dag = new MCTS(10+1);
+		dag.setTranspositionTableSize(16);
+		dag.iterate(state, 100000);
+		// walk down by robustness ourselves, reaching shared nodes through the moves we chose
+		String expected = "";
+		Node node = dag.getRoot();
+		while (node.hasChildren())
+		{
+			Node winning = node.getMostWinningNode();
+			node = (winning != null && winning.hasChildren()) ? winning : node.getMostVisitedNode();
+			expected += node.getMoveIndex() + ":";
+		}
+		String actual = "";
+		for (int index : dag.getBestPath().getIndices())
+			actual += index + ":";
+		assertEquals(expected, actual);
+	}
+
+	public void testResetReusesNodes() throws InterruptedException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.iterate(state, 20000);
+		int count = mcts.getNodeCount();
+		String best = mcts.getBestPath().toString();
+		assertTrue(count > 0);
+		// same seed after reset(), so the second search should build the same tree in the old slots
+		mcts.reset();
+		assertNull(mcts.getRoot());
+		mcts.iterate(state, 20000);
+		assertEquals(count, mcts.getNodeCount());
+		assertEquals(best, mcts.getBestPath().toString());
+	}
+
+	public void testAdvanceKeepsSubtree() throws InterruptedException
+	{
+		final TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.iterate(state, 20000);
+		int[] path = mcts.getBestPath().getIndices();
+		Node reply = mcts.getRoot().getChildWithIndex(path[0]).getChildWithIndex(path[1]);
+		int visits = reply.numVisits();
+		assertTrue(visits > 0);
+		// opponent to move after just our move, can't keep that tree
+		MCTS mcts2 = new MCTS(10+1);
+		mcts2.iterate(state, 20000);
+		assertFalse(mcts2.advance(path, 1));
+		assertNull(mcts2.getRoot());
+		// our move and the reply, freeing the rest of the tree
+		int count = mcts.getNodeCount();
+		assertTrue(mcts.advance(path, 2));
+		assertTrue(mcts.getNodeCount() < count / 2);
+		assertEquals(visits, mcts.getRoot().numVisits());
+		assertEquals(0, mcts.getRoot().getLevel());
+		for (int i=0; i<2; i++)
+			state.makeMove(state.getBoard().i2x(path[i]), state.getBoard().i2y(path[i]));
+		mcts.iterate(state, 20000);
+		assertTrue(mcts.getRoot().numVisits() > visits);
+		Node best = mcts.getBestPath().getFirst();
+		assertTrue(state.getBoard().get(state.getBoard().i2x(best.getMoveIndex()), state.getBoard().i2y(best.getMoveIndex())) == Piece._);
+	}
+
+	public void testNodeBudget() throws InterruptedException
+	{
+		TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.setNodeBudget(2000);
+		mcts.iterate(state, 50000);
+		System.out.println(mcts);
+		mcts.getRoot().dumpToLevel(1);
+		// collapsed subtrees keep their statistics in the surviving nodes
+		assertTrue(mcts.getNodeCount() <= 2000);
+		assertTrue(mcts.getRoot().numVisits() > 45000);
+		// the center is the best opening
+		Node best = mcts.getBestPath().getFirst();
+		assertEquals(state.getBoard().xy2i(1, 1), best.getMoveIndex());
+	}
+
+	public void testNodeBudgetTranspositions() throws InterruptedException
+	{
+		TicTacToe state = new TicTacToe();
+		MCTS mcts = new MCTS(10+1);
+		mcts.setNodeBudget(500);
+		mcts.setTranspositionTableSize(12);
+		mcts.iterate(state, 50000);
+		System.out.println(mcts);
+		assertTrue(mcts.getNodeCount() <= 500);
+		// survivors are still registered, under their new ids
+		FastHash<Integer> transpositions = mcts.getTranspositionTable();
+		assertTrue(transpositions.keyCount() > 0);
+		for (int i=0; i<transpositions.capacity(); i++)
+		{
+			Integer id = transpositions.getEntryAtIndex(i);
+			assertTrue(id == null || id <= mcts.getNodeCount());
+		}
+	}
+
 	public void testTicTacToeXWins()
 	{
 		TicTacToe state = new TicTacToe();
@@ -277,6 +455,21 @@ public class TestMCTS extends BaseTestCase
 		System.out.println(root.toDesc());
 	}
 
+	public void testGo9TimeLimit() throws MoveFailedException
+	{
+		final Go state = new Go(9, 2);
+		MCTS mcts = new MCTS(9*9*Go.LevelsPerTurn);
+		mcts.setTimeLimit(250);
+		AIDecider decider = mcts.newSolver(state);
+		long t1 = System.currentTimeMillis();
+		state.playTurn(decider);
+		long t2 = System.currentTimeMillis();
+		System.out.println(decider.getLastSolveIterations() + " iterations in " + (t2-t1) + " msec");
+		assertTrue(decider.getLastSolveIterations() > 0);
+		assertTrue(t2-t1 < 250 + 500);
+		assertEquals(1, state.getCurrentPlayer());
+	}
+
 	public void testGo13()
 	{
 		final Go state = new Go(13, 2);
@@ -288,6 +481,24 @@ public class TestMCTS extends BaseTestCase
 		System.out.println(root.toDesc());
 	}
 
+	public void testChessSnapshotCache() throws InterruptedException
+	{
+		Chess game = getChessPosition("1k1r4/pp1b1R2/3q2pp/4p3/2B5/4Q3/PPP2B2/2K5 b - - bm Qd1+");
+		MCTS mcts1 = new MCTS(100);
+		long t1 = System.currentTimeMillis();
+		mcts1.iterate(game, 20000);
+		long t2 = System.currentTimeMillis();
+		// starting from cached states shouldn't change the search, only speed it up
+		MCTS mcts2 = new MCTS(100);
+		mcts2.setSnapshotCache(12, 32);
+		mcts2.iterate(game, 20000);
+		long t3 = System.currentTimeMillis();
+		System.out.println("replay " + (t2-t1) + " msec, snapshots " + (t3-t2) + " msec");
+		assertEquals(mcts1.getNodeCount(), mcts2.getNodeCount());
+		assertEquals(mcts1.getRoot().numVisits(), mcts2.getRoot().numVisits());
+		assertEquals(mcts1.getBestPath().toString(), mcts2.getBestPath().toString());
+	}
+
 	public void testImmediateCheckmate() throws MoveFailedException
 	{
 		Chess game = getChessPosition("R1k5/5Q2/5q2/7R/8/1p1K4/3B4/8 b - - -");
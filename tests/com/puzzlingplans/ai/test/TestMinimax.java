@@ -1,8 +1,10 @@
 package com.puzzlingplans.ai.test;
 
+import com.puzzlingplans.ai.Decider;
 import com.puzzlingplans.ai.GameState;
 import com.puzzlingplans.ai.Line;
 import com.puzzlingplans.ai.MoveFailedException;
+import com.puzzlingplans.ai.MoveResult;
 import com.puzzlingplans.ai.ReplayDecider;
 import com.puzzlingplans.ai.games.Dice;
 import com.puzzlingplans.ai.games.FourUp;
@@ -10,6 +12,9 @@ import com.puzzlingplans.ai.games.Lattaque;
 import com.puzzlingplans.ai.games.Pig;
 import com.puzzlingplans.ai.games.TicTacToe;
 import com.puzzlingplans.ai.games.chess.Chess;
+import com.puzzlingplans.ai.games.go.Go;
+import com.puzzlingplans.ai.search.AIDecider;
+import com.puzzlingplans.ai.search.IterativeDeepening;
 import com.puzzlingplans.ai.search.Minimax;
 
 public class TestMinimax extends BaseTestCase
@@ -166,6 +171,217 @@ public class TestMinimax extends BaseTestCase
 		assertEquals(":2:2:1:0:0:", mmax.getPrincipalVariation().toString());
 	}
 	
+	public void testFourUpEndGamePackedTT() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		state.makeMove(2);
+		state.makeMove(1);
+		state.makeMove(2);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(5);
+		Minimax mmax = new Minimax(state);
+		mmax.setMaxLevel(12);
+		mmax.setDepthPenalty(1);
+		mmax.setPackedTranspositionTableSize(18);
+		assertEquals(GameState.WIN-5, mmax.solve());
+		System.out.println(mmax);
+		System.out.println(mmax.getPackedTranspositionTable());
+		assertEquals(":2:", mmax.getBestMove().toString());
+		assertTrue(mmax.getPackedTranspositionTable().totalHits > 0);
+	}
+	
+	public void testFourUpEndGameLazySMP() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		state.makeMove(2);
+		state.makeMove(1);
+		state.makeMove(2);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(5);
+		Minimax mmax = new Minimax(state);
+		mmax.setMaxLevel(12);
+		mmax.setDepthPenalty(1);
+		mmax.setTranspositionTableSize(18);
+		mmax.setNumThreads(4);
+		for (int i=0; i<3; i++)
+		{
+			assertEquals(GameState.WIN-5, mmax.solve());
+			System.out.println(mmax);
+			assertEquals(":2:", mmax.getBestMove().toString());
+		}
+	}
+	
+	// a position that can't be searched past four moves
+	static class ShallowTicTacToe extends TicTacToe
+	{
+		@Override
+		public MoveResult playTurn(Decider decider) throws MoveFailedException
+		{
+			if (Long.bitCount(getBoard().getAllOccupied64()) >= 4)
+				throw new IllegalStateException("searched too deep");
+			return super.playTurn(decider);
+		}
+	}
+
+	public void testLazySMPHelperFailure() throws MoveFailedException
+	{
+		ShallowTicTacToe state = new ShallowTicTacToe();
+		Minimax mmax = new Minimax(state);
+		mmax.setMaxLevel(4);
+		int score = mmax.solve();
+		String best = mmax.getBestMove().toString();
+		// the odd helpers search a ply deeper and fail, which mustn't cost us our result
+		// (helpers that haven't started when we finish are just cancelled, so try a few times)
+		Minimax smp = new Minimax(state);
+		smp.setMaxLevel(4);
+		smp.setNumThreads(4);
+		for (int i=0; i<100 && smp.numHelperFailures() == 0; i++)
+		{
+			assertEquals(score, smp.solve());
+			assertEquals(best, smp.getBestMove().toString());
+		}
+		assertTrue(smp.numHelperFailures() > 0);
+		assertTrue(smp.getLastHelperFailure() instanceof IllegalStateException);
+	}
+
+	public void testIterativeDeepening() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		state.makeMove(2);
+		state.makeMove(1);
+		state.makeMove(2);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(5);
+		Minimax mmax = new Minimax(state);
+		mmax.setDepthPenalty(1);
+		mmax.setTranspositionTableSize(18);
+		IterativeDeepening deepening = new IterativeDeepening(mmax, 2, 2, 12);
+		deepening.setAspirationWindow(4);
+		while (deepening.iterate())
+		{
+			System.out.println(deepening + " " + deepening.getPrincipalVariation() + " " + mmax);
+		}
+		assertEquals(GameState.WIN-5, deepening.getScore());
+		assertEquals(12, deepening.getLastDepth());
+		assertEquals(":2:", deepening.getBestMove().toString());
+		assertTrue(deepening.numResearches() > 0);
+	}
+	
+	public void testIterativeDeepeningPackedTT() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		state.makeMove(2);
+		state.makeMove(1);
+		state.makeMove(2);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(5);
+		int[] leaves = new int[2];
+		for (int i=0; i<2; i++)
+		{
+			Minimax mmax = new Minimax(state);
+			mmax.setDepthPenalty(1);
+			mmax.setPackedTranspositionTableSize(12);
+			IterativeDeepening deepening = new IterativeDeepening(mmax, 2, 2, 14);
+			deepening.setAspirationWindow(4);
+			do {
+				// aging the table every depth throws away the deeper entries
+				if (i == 1)
+					mmax.newSearch();
+			} while (deepening.iterate());
+			System.out.println(deepening + " " + mmax);
+			assertEquals(GameState.WIN-5, deepening.getScore());
+			assertEquals(":2:", deepening.getBestMove().toString());
+			leaves[i] = mmax.numLeavesVisited();
+		}
+		assertTrue(leaves[0] < leaves[1]);
+	}
+
+	public void testIterativeDeepeningLeafBudget() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		Minimax mmax = new Minimax(state);
+		mmax.setTranspositionTableSize(18);
+		IterativeDeepening deepening = new IterativeDeepening(mmax, 1, 1, 40);
+		deepening.setMaxNumLeaves(100000);
+		deepening.solve();
+		System.out.println(deepening + " " + mmax);
+		assertTrue(deepening.isOutOfTime());
+		assertTrue(deepening.getLastDepth() > 4 && deepening.getLastDepth() < 40);
+		assertNotNull(deepening.getBestMove());
+	}
+	
+	public void testUndoMatchesCopy() throws MoveFailedException
+	{
+		FourUp state = new FourUp();
+		state.makeMove(2);
+		state.makeMove(1);
+		state.makeMove(2);
+		state.makeMove(3);
+		state.makeMove(3);
+		state.makeMove(3);
+		int[] results = new int[4];
+		String[] pvs = new String[2];
+		for (int i=0; i<2; i++)
+		{
+			Minimax mmax = new Minimax(state);
+			mmax.setMaxLevel(8);
+			mmax.setDepthPenalty(1);
+			mmax.setTranspositionTableSize(16);
+			mmax.setUseUndo(i == 0);
+			results[i*2] = mmax.solve();
+			results[i*2+1] = mmax.numLeavesVisited();
+			pvs[i] = mmax.getPrincipalVariation().toString();
+			System.out.println(mmax + " " + pvs[i]);
+		}
+		assertEquals(results[0], results[2]);
+		assertEquals(results[1], results[3]);
+		assertEquals(pvs[0], pvs[1]);
+	}
+	
+	public void testUndoMatchesCopyGo() throws MoveFailedException
+	{
+		// captures on both sides, and a pass already made, so passing again ends the game
+		Go state = new Go(5, 2);
+		state.set(1, 0, 0);
+		state.set(2, 0, 1);
+		state.set(0, 1, 0);
+		state.set(1, 1, 1);
+		state.set(2, 1, 0);
+		state.set(2, 2, 1);
+		state.pass();
+		long hash = state.hashFor(0);
+		int[] results = new int[4];
+		String[] pvs = new String[2];
+		for (int i=0; i<2; i++)
+		{
+			Minimax mmax = new Minimax(state);
+			mmax.setMaxLevel(6);
+			mmax.setTranspositionTableSize(16);
+			mmax.setUseUndo(i == 0);
+			results[i*2] = mmax.solve();
+			results[i*2+1] = mmax.numLeavesVisited();
+			pvs[i] = mmax.getPrincipalVariation().toString();
+			System.out.println(mmax + " " + pvs[i]);
+			// every capture and pass was taken back
+			assertEquals(hash, ((Go) mmax.getInitialState()).hashFor(0));
+		}
+		assertEquals(results[0], results[2]);
+		assertEquals(results[1], results[3]);
+		assertEquals(pvs[0], pvs[1]);
+	}
+
 	public void testPig()
 	{
 		Pig state = new Pig(2, 25);
@@ -306,6 +522,23 @@ public class TestMinimax extends BaseTestCase
 		assertEquals(8902, mmax.numLeavesVisited());
 	}
 
+	public void testChessTimeLimit() throws MoveFailedException
+	{
+		Chess state = new Chess();
+		state.initDefaultBoard();
+		Minimax mmax = new Minimax(state);
+		mmax.setMaxLevel(20*Chess.LevelsPerTurn);
+		mmax.setTimeLimit(250);
+		AIDecider decider = mmax.newSolver(state, Chess.LevelsPerTurn/2);
+		long t1 = System.currentTimeMillis();
+		state.playTurn(decider);
+		long t2 = System.currentTimeMillis();
+		System.out.println(decider.getLastSolveIterations() + " leaves in " + (t2-t1) + " msec");
+		assertTrue(decider.getLastSolveIterations() > 0);
+		assertTrue(t2-t1 < 250 + 500);
+		assertEquals(1, state.getCurrentPlayer());
+	}
+
 	public void testChess2()
 	{
 		Chess state = new Chess();